@@ -0,0 +1,110 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The synthetic corpus (text, points, doc values and stored fields, like the
+ * QuickCeffDirectoryTester) and the query workloads of the end-to-end benchmarks
+ */
+final class BenchmarkCorpus {
+
+  /** The query workloads, see {@link #query(IndexSearcher, String, Random)} */
+  static final String[] WORKLOADS = {"term", "range", "sort", "stored"};
+
+  private static final int VOCABULARY = 50_000;
+  private static final int MAX_VALUE = 1_000_000;
+  private static final Sort SORT = new Sort(new SortField("value", SortField.Type.LONG));
+
+  private BenchmarkCorpus() {}
+
+  /**
+   * @param id The id of the document
+   * @param random The source of the content, a seeded random creates the same corpus
+   * @return The document
+   */
+  static Document document(String id, Random random) {
+    final StringBuilder body = new StringBuilder();
+    final int words = 20 + random.nextInt(80);
+    for (int w = 0; w < words; w++) {
+      body.append(word(random)).append(' ');
+    }
+
+    final Document doc = new Document();
+    doc.add(new StringField("id", id, Field.Store.YES));
+    doc.add(new TextField("title", word(random) + " " + word(random), Field.Store.YES));
+    doc.add(new TextField("body", body.toString(), Field.Store.NO));
+    final int value = random.nextInt(MAX_VALUE);
+    doc.add(new IntPoint("value", value));
+    doc.add(new NumericDocValuesField("value", value));
+    doc.add(new StoredField("value", value));
+    final BytesRef category = new BytesRef("category" + random.nextInt(100));
+    doc.add(new SortedDocValuesField("category", category));
+    doc.add(new StoredField("category", category));
+    return doc;
+  }
+
+  /** skewed (zipf like) word distribution so that there are frequent and rare terms */
+  private static String word(Random random) {
+    return "w" + random.nextInt(1 + random.nextInt(VOCABULARY));
+  }
+
+  /**
+   * Run one query of a workload: a term query, a point range query, a term query sorted by a doc
+   * values field or fetching the stored fields of the hits of a point query and of random docs
+   *
+   * @return The number of hits or fetched fields
+   */
+  static long query(IndexSearcher searcher, String workload, Random random) throws IOException {
+    switch (workload) {
+      case "term":
+        return searcher.search(new TermQuery(new Term("body", word(random))), 10).totalHits.value;
+      case "range":
+        final int lower = random.nextInt(MAX_VALUE);
+        return searcher.search(IntPoint.newRangeQuery("value", lower, lower + MAX_VALUE / 100), 10)
+            .totalHits
+            .value;
+      case "sort":
+        return searcher.search(new TermQuery(new Term("body", word(random))), 10, SORT)
+            .totalHits
+            .value;
+      case "stored":
+        long fields = 0;
+        final TopDocs top =
+            searcher.search(IntPoint.newExactQuery("value", random.nextInt(MAX_VALUE)), 10);
+        for (final ScoreDoc scoreDoc : top.scoreDocs) {
+          fields += searcher.doc(scoreDoc.doc).getFields().size();
+        }
+        final int maxDoc = searcher.getIndexReader().maxDoc();
+        for (int k = 0; k < 10 && maxDoc > 0; k++) {
+          fields += searcher.doc(random.nextInt(maxDoc)).getFields().size();
+        }
+        return fields;
+      default:
+        throw new IllegalArgumentException("Unknown workload " + workload);
+    }
+  }
+}
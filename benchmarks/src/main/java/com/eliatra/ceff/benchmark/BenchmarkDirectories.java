@@ -0,0 +1,101 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffDirectory;
+import com.eliatra.ceff.CeffMode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * The directories the benchmarks compare. {@code mmap} is the plain {@link MMapDirectory} baseline,
+ * {@code ceff-aes} and {@code ceff-chacha} are {@link CeffDirectory} instances which wrap a {@link
+ * MMapDirectory}. {@code ceff-aes-niofs} wraps a {@link NIOFSDirectory} and {@code ceff-aes-pread}
+ * reads with {@link CeffDirectory#setPositionalReads(boolean) positional reads}. {@code
+ * ceff-aes-partial} and {@code ceff-chacha-partial} use {@link
+ * CeffDirectory#setPartialDecryption(boolean) partial decryption}.
+ */
+final class BenchmarkDirectories {
+
+  static final byte[] KEY = new byte[32];
+
+  static {
+    new Random(42).nextBytes(KEY);
+  }
+
+  private BenchmarkDirectories() {}
+
+  /**
+   * @param name mmap, ceff-aes, ceff-chacha, ceff-aes-niofs, ceff-aes-pread, ceff-aes-partial or
+   *     ceff-chacha-partial
+   * @param path The path of the directory
+   * @param chunkLength The chunk length of CEFF directories
+   * @return The directory
+   */
+  static Directory open(String name, Path path, int chunkLength) throws IOException {
+    switch (name) {
+      case "mmap":
+        return new MMapDirectory(path);
+      case "ceff-aes":
+        return new CeffDirectory(new MMapDirectory(path), KEY, chunkLength, CeffMode.AES_GCM_MODE);
+      case "ceff-chacha":
+        return new CeffDirectory(
+            new MMapDirectory(path), KEY, chunkLength, CeffMode.CHACHA20_POLY1305_MODE);
+      case "ceff-aes-niofs":
+        return new CeffDirectory(new NIOFSDirectory(path), KEY, chunkLength, CeffMode.AES_GCM_MODE);
+      case "ceff-aes-pread":
+        final CeffDirectory preadDir =
+            new CeffDirectory(new NIOFSDirectory(path), KEY, chunkLength, CeffMode.AES_GCM_MODE);
+        preadDir.setPositionalReads(true);
+        return preadDir;
+      case "ceff-aes-partial":
+      case "ceff-chacha-partial":
+        final CeffDirectory partialDir =
+            new CeffDirectory(
+                new MMapDirectory(path),
+                KEY,
+                chunkLength,
+                name.startsWith("ceff-aes")
+                    ? CeffMode.AES_GCM_MODE
+                    : CeffMode.CHACHA20_POLY1305_MODE);
+        partialDir.setPartialDecryption(true);
+        return partialDir;
+      default:
+        throw new IllegalArgumentException("Unknown directory " + name);
+    }
+  }
+
+  /** Write a file with random content */
+  static void write(Directory dir, String name, long fileSize) throws IOException {
+    final byte[] bytes = new byte[64 * 1024];
+    final Random random = new Random(42);
+
+    try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      while (out.getFilePointer() < fileSize) {
+        random.nextBytes(bytes);
+        out.writeBytes(bytes, (int) Math.min(bytes.length, fileSize - out.getFilePointer()));
+      }
+    }
+  }
+
+  /** Delete a directory and its content */
+  static void delete(Path path) throws IOException {
+    try (Stream<Path> paths = Files.walk(path)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate per operation is reported
+ * alongside the score. Accepts the usual JMH command line options, e.g. a benchmark regex or {@code
+ * -p directory=mmap,ceff-aes}.
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {}
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,273 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffDirectory;
+import com.eliatra.ceff.CeffMode;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * End-to-end indexing and search benchmark which compares the plain {@link FSDirectory} with {@link
+ * CeffDirectory} (AES-GCM and ChaCha20-Poly1305) at several chunk lengths. Every configuration
+ * indexes the same synthetic {@link BenchmarkCorpus} and measures:
+ *
+ * <ul>
+ *   <li>indexing throughput in docs/sec (without the NRT reopens)
+ *   <li>NRT reopen latency (p50/p99), a reopen flushes the buffered docs into a new segment
+ *   <li>flush (commit) and merge (force merge to one segment) time
+ *   <li>query latency (p50/p99) for term, range, sorted and stored field fetch workloads
+ * </ul>
+ *
+ * <p>Usage: IndexingSearchBenchmark [docs] [chunk lengths, comma separated] [queries per workload]
+ * [csv report file]
+ */
+public final class IndexingSearchBenchmark {
+
+  private static final int REOPEN_INTERVAL = 10_000;
+  private static final String[] WORKLOADS = BenchmarkCorpus.WORKLOADS;
+
+  private IndexingSearchBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+    final int[] chunkLengths =
+        args.length > 1
+            ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+            : new int[] {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    final int queries = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+    final Path csv = args.length > 3 ? Paths.get(args[3]) : null;
+
+    final List<String> configs = new ArrayList<>();
+    configs.add("fs");
+    for (final int chunkLength : chunkLengths) {
+      configs.add("aes-" + chunkLength);
+      if (CeffMode.CHACHA20_POLY1305_MODE.isSupported()) {
+        configs.add("chacha-" + chunkLength);
+      }
+    }
+
+    // a smaller discarded round first, otherwise the first configuration runs with a cold JIT
+    for (final String config : configs) {
+      System.out.println("Warming up " + config + " ...");
+      run(config, Math.max(1, docs / 10), Math.max(1, queries / 10));
+    }
+
+    final List<Result> results = new ArrayList<>();
+
+    for (final String config : configs) {
+      System.out.println("Running " + config + " ...");
+      results.add(run(config, docs, queries));
+    }
+
+    System.out.println();
+    print(results, System.out, false);
+
+    if (csv != null) {
+      try (PrintStream out = new PrintStream(Files.newOutputStream(csv), true, "UTF-8")) {
+        print(results, out, true);
+      }
+      System.out.println();
+      System.out.println("Report written to " + csv);
+    }
+  }
+
+  private static Result run(String config, int docs, int queries) throws IOException {
+    final Path path = Files.createTempDirectory("ceff-e2e-benchmark");
+
+    try (Directory dir = open(config, path)) {
+      return run(config, dir, docs, queries);
+    } finally {
+      BenchmarkDirectories.delete(path);
+    }
+  }
+
+  private static Directory open(String config, Path path) throws IOException {
+    if ("fs".equals(config)) {
+      return FSDirectory.open(path);
+    }
+
+    final String[] modeAndChunkLength = config.split("-");
+    return new CeffDirectory(
+        FSDirectory.open(path),
+        BenchmarkDirectories.KEY,
+        Integer.parseInt(modeAndChunkLength[1]),
+        "aes".equals(modeAndChunkLength[0])
+            ? CeffMode.AES_GCM_MODE
+            : CeffMode.CHACHA20_POLY1305_MODE);
+  }
+
+  private static Result run(String config, Directory dir, int docs, int queries)
+      throws IOException {
+    final Result result = new Result(config);
+    // every configuration indexes and queries exactly the same
+    final Random random = new Random(42);
+    final List<Long> reopens = new ArrayList<>();
+    long indexingNanos = 0;
+
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      DirectoryReader reader = DirectoryReader.open(writer);
+
+      for (int d = 0; d < docs; d++) {
+        final Document doc = BenchmarkCorpus.document(Integer.toString(d), random);
+        long start = System.nanoTime();
+        writer.addDocument(doc);
+        indexingNanos += System.nanoTime() - start;
+
+        if ((d + 1) % REOPEN_INTERVAL == 0) {
+          start = System.nanoTime();
+          final DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer);
+          reopens.add(System.nanoTime() - start);
+          if (newReader != null) {
+            reader.close();
+            reader = newReader;
+          }
+        }
+      }
+
+      reader.close();
+
+      long start = System.nanoTime();
+      writer.commit();
+      result.flushMillis = (System.nanoTime() - start) / 1_000_000d;
+
+      try (DirectoryReader committed = DirectoryReader.open(dir)) {
+        result.segments = committed.leaves().size();
+        search(new IndexSearcher(committed), random, queries, result);
+      }
+
+      start = System.nanoTime();
+      writer.forceMerge(1);
+      writer.commit();
+      result.mergeMillis = (System.nanoTime() - start) / 1_000_000d;
+    }
+
+    result.docsPerSec = docs / (indexingNanos / 1_000_000_000d);
+    result.reopenMillis = percentiles(reopens.stream().mapToLong(Long::longValue).toArray(), 1e6);
+    return result;
+  }
+
+  private static void search(IndexSearcher searcher, Random random, int queries, Result result)
+      throws IOException {
+    for (int w = 0; w < WORKLOADS.length; w++) {
+      final long[] latencies = new long[queries];
+
+      // the first half of the iterations warms up
+      for (int i = -queries / 2; i < queries; i++) {
+        final long start = System.nanoTime();
+        result.blackhole += BenchmarkCorpus.query(searcher, WORKLOADS[w], random);
+
+        if (i >= 0) {
+          latencies[i] = System.nanoTime() - start;
+        }
+      }
+
+      result.queryMicros[w] = percentiles(latencies, 1e3);
+    }
+  }
+
+  /** @return p50 and p99 of the values divided by the unit */
+  private static double[] percentiles(long[] values, double unit) {
+    if (values.length == 0) {
+      return new double[] {0, 0};
+    }
+
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return new double[] {
+      sorted[(int) Math.ceil(0.50 * sorted.length) - 1] / unit,
+      sorted[(int) Math.ceil(0.99 * sorted.length) - 1] / unit
+    };
+  }
+
+  private static void print(List<Result> results, PrintStream out, boolean csv) {
+    final List<String> header =
+        new ArrayList<>(
+            Arrays.asList(
+                "config",
+                "docs/sec",
+                "vs fs",
+                "reopen p50 ms",
+                "reopen p99 ms",
+                "flush ms",
+                "merge ms",
+                "segments"));
+    for (final String workload : WORKLOADS) {
+      header.add(workload + " p50 us");
+      header.add(workload + " p99 us");
+    }
+
+    final double baseline = results.get(0).docsPerSec;
+    final List<List<String>> rows = new ArrayList<>();
+    rows.add(header);
+
+    for (final Result r : results) {
+      final List<String> row = new ArrayList<>();
+      row.add(r.config);
+      row.add(format(r.docsPerSec));
+      row.add(String.format(Locale.ROOT, "%.1f%%", (r.docsPerSec / baseline - 1) * 100));
+      row.add(format(r.reopenMillis[0]));
+      row.add(format(r.reopenMillis[1]));
+      row.add(format(r.flushMillis));
+      row.add(format(r.mergeMillis));
+      row.add(Integer.toString(r.segments));
+      for (final double[] micros : r.queryMicros) {
+        row.add(format(micros[0]));
+        row.add(format(micros[1]));
+      }
+      rows.add(row);
+    }
+
+    for (final List<String> row : rows) {
+      if (csv) {
+        out.println(String.join(",", row));
+      } else {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < row.size(); i++) {
+          line.append(String.format(Locale.ROOT, i == 0 ? "%-16s" : "%15s", row.get(i)));
+        }
+        out.println(line);
+      }
+    }
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.1f", value);
+  }
+
+  private static final class Result {
+    private final String config;
+    private double docsPerSec;
+    private double[] reopenMillis;
+    private double flushMillis;
+    private double mergeMillis;
+    private int segments;
+    private final double[][] queryMicros = new double[WORKLOADS.length][];
+    private long blackhole;
+
+    private Result(String config) {
+      this.config = config;
+    }
+  }
+}
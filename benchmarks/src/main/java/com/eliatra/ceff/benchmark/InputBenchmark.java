@@ -0,0 +1,130 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costs of the read paths of an open input: a sequential scan of the whole file, a seek to a random
+ * position, a positional read and creating a clone or a slice (and reading its first byte).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InputBenchmark {
+
+  @Param({
+    "mmap",
+    "ceff-aes",
+    "ceff-chacha",
+    "ceff-aes-niofs",
+    "ceff-aes-pread",
+    "ceff-aes-partial",
+    "ceff-chacha-partial"
+  })
+  public String directory;
+
+  @Param({"65536"})
+  public int chunkLength;
+
+  @Param({"16777216"})
+  public long fileSize;
+
+  private Path path;
+  private Directory dir;
+  private IndexInput in;
+  private RandomAccessInput randomAccess;
+  private final long[] positions = new long[1024];
+  private final byte[] bytes = new byte[4096];
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    this.path = Files.createTempDirectory("ceff-input-benchmark");
+    this.dir = BenchmarkDirectories.open(this.directory, this.path, this.chunkLength);
+    BenchmarkDirectories.write(this.dir, "in", this.fileSize);
+    this.in = this.dir.openInput("in", IOContext.READ);
+    this.randomAccess = this.in.randomAccessSlice(0, this.fileSize);
+
+    final Random random = new Random(42);
+    for (int i = 0; i < this.positions.length; i++) {
+      this.positions[i] = (long) (random.nextDouble() * (this.fileSize - Long.BYTES));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    this.in.close();
+    this.dir.close();
+    BenchmarkDirectories.delete(this.path);
+  }
+
+  private long nextPosition() {
+    return this.positions[this.next++ & (this.positions.length - 1)];
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public int sequentialRead() throws IOException {
+    this.in.seek(0);
+    int sum = 0;
+
+    while (this.in.getFilePointer() < this.fileSize) {
+      final int length =
+          (int) Math.min(this.bytes.length, this.fileSize - this.in.getFilePointer());
+      this.in.readBytes(this.bytes, 0, length);
+      sum += this.bytes[0];
+    }
+
+    return sum;
+  }
+
+  @Benchmark
+  public byte randomSeek() throws IOException {
+    this.in.seek(this.nextPosition());
+    return this.in.readByte();
+  }
+
+  @Benchmark
+  public long randomAccessReadLong() throws IOException {
+    return this.randomAccess.readLong(this.nextPosition());
+  }
+
+  @Benchmark
+  public byte cloneInput() throws IOException {
+    return this.in.clone().readByte();
+  }
+
+  @Benchmark
+  public byte sliceInput() throws IOException {
+    return this.in.slice("slice", this.nextPosition(), Long.BYTES).readByte();
+  }
+}
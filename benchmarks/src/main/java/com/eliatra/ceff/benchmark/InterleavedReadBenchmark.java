@@ -0,0 +1,95 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffDirectory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Random reads which alternate between two files, like a query which reads several fields. With
+ * format version 3 every file has its own key, so the cipher of the reading thread is used with two
+ * keys in turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterleavedReadBenchmark {
+
+  @Param({"ceff-aes", "ceff-chacha"})
+  public String directory;
+
+  @Param({"2", "3"})
+  public int formatVersion;
+
+  @Param({"4096"})
+  public int chunkLength;
+
+  @Param({"4194304"})
+  public long fileSize;
+
+  private Path path;
+  private CeffDirectory dir;
+  private IndexInput first;
+  private IndexInput second;
+  private final long[] positions = new long[1024];
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    this.path = Files.createTempDirectory("ceff-interleaved-benchmark");
+    this.dir =
+        (CeffDirectory) BenchmarkDirectories.open(this.directory, this.path, this.chunkLength);
+    this.dir.setChunkCache(null);
+    this.dir.setFormatVersion(this.formatVersion);
+    BenchmarkDirectories.write(this.dir, "first", this.fileSize);
+    BenchmarkDirectories.write(this.dir, "second", this.fileSize);
+    this.first = this.dir.openInput("first", IOContext.READ);
+    this.second = this.dir.openInput("second", IOContext.READ);
+
+    final Random random = new Random(42);
+    for (int i = 0; i < this.positions.length; i++) {
+      this.positions[i] = (long) (random.nextDouble() * this.fileSize);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    this.first.close();
+    this.second.close();
+    this.dir.close();
+    BenchmarkDirectories.delete(this.path);
+  }
+
+  @Benchmark
+  public int interleavedRead() throws IOException {
+    this.first.seek(this.positions[this.next++ & (this.positions.length - 1)]);
+    this.second.seek(this.positions[this.next++ & (this.positions.length - 1)]);
+    return this.first.readByte() + this.second.readByte();
+  }
+}
@@ -0,0 +1,106 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds with logarithmic buckets (8 buckets per power
+ * of two, so values are reported with a relative error below 12.5%). Recording is lock-free and
+ * meant to be done by a single thread per histogram, another thread can drain it concurrently.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  void record(long nanos) {
+    this.counts.incrementAndGet(bucket(Math.max(0, nanos)));
+  }
+
+  /** Move all values of the other histogram into this one */
+  void drainFrom(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      final long count = other.counts.getAndSet(i, 0);
+      if (count != 0) {
+        this.counts.addAndGet(i, count);
+      }
+    }
+  }
+
+  /** Add all values of the other histogram to this one */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      final long count = other.counts.get(i);
+      if (count != 0) {
+        this.counts.addAndGet(i, count);
+      }
+    }
+  }
+
+  long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += this.counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * @param percentile The percentile, e.g. 99.9
+   * @return The lower bound of the bucket which contains the percentile in nanos or 0 if the
+   *     histogram is empty
+   */
+  long percentile(double percentile) {
+    final long count = this.count();
+    if (count == 0) {
+      return 0;
+    }
+
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        return lowerBound(i);
+      }
+    }
+    return lowerBound(BUCKETS - 1);
+  }
+
+  /** @return The lower bound of the highest non empty bucket in nanos */
+  long max() {
+    for (int i = BUCKETS - 1; i >= 0; i--) {
+      if (this.counts.get(i) != 0) {
+        return lowerBound(i);
+      }
+    }
+    return 0;
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+    final int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,300 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffDirectory;
+import com.eliatra.ceff.CeffMode;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Soak and load test: N searcher threads run the query workloads of the {@link BenchmarkCorpus}
+ * against one encrypted index while a writer thread adds and updates documents, commits, refreshes
+ * the searchers and merges in parallel. Every report interval it prints per operation throughput
+ * and latency percentiles, the GC time and the memory held by the directory, at the end the totals.
+ * The exit code is 1 if any operation failed.
+ *
+ * <p>Usage: LoadTester [searcher threads] [duration seconds] [report interval seconds] [aes|chacha]
+ * [chunk length] [initial docs]
+ */
+public final class LoadTester {
+
+  private static final String[] WRITER_OPERATIONS = {"index", "commit", "refresh", "merge"};
+  private static final long COMMIT_INTERVAL_MILLIS = 1_000;
+  private static final int MERGE_INTERVAL_COMMITS = 10;
+
+  private final List<Map<String, LatencyHistogram>> threadHistograms = new ArrayList<>();
+  private final Map<String, LatencyHistogram> totals = new LinkedHashMap<>();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile boolean stop;
+
+  private LoadTester() {
+    for (final String operation : BenchmarkCorpus.WORKLOADS) {
+      this.totals.put(operation, new LatencyHistogram());
+    }
+    for (final String operation : WRITER_OPERATIONS) {
+      this.totals.put(operation, new LatencyHistogram());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    final long durationSeconds = args.length > 1 ? Long.parseLong(args[1]) : 600;
+    final long intervalSeconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+    final CeffMode mode =
+        args.length > 3 && "chacha".equals(args[3])
+            ? CeffMode.CHACHA20_POLY1305_MODE
+            : CeffMode.AES_GCM_MODE;
+    final int chunkLength = args.length > 4 ? Integer.parseInt(args[4]) : 64 * 1024;
+    final int initialDocs = args.length > 5 ? Integer.parseInt(args[5]) : 100_000;
+
+    System.out.println("searcher threads : " + threads);
+    System.out.println("duration         : " + durationSeconds + " sec");
+    System.out.println("mode             : " + mode.getClass().getSimpleName());
+    System.out.println("chunk length     : " + chunkLength);
+    System.out.println("initial docs     : " + initialDocs);
+    System.out.println();
+
+    final Path path = Files.createTempDirectory("ceff-load-test");
+    final long errors;
+
+    try {
+      errors =
+          new LoadTester()
+              .run(path, threads, durationSeconds, intervalSeconds, mode, chunkLength, initialDocs);
+    } finally {
+      BenchmarkDirectories.delete(path);
+    }
+
+    System.exit(errors == 0 ? 0 : 1);
+  }
+
+  private long run(
+      Path path,
+      int threads,
+      long durationSeconds,
+      long intervalSeconds,
+      CeffMode mode,
+      int chunkLength,
+      int initialDocs)
+      throws Exception {
+    try (CeffDirectory dir =
+            new CeffDirectory(FSDirectory.open(path), BenchmarkDirectories.KEY, chunkLength, mode);
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+
+      final Random random = new Random(42);
+      for (int d = 0; d < initialDocs; d++) {
+        writer.addDocument(BenchmarkCorpus.document(Integer.toString(d), random));
+      }
+      writer.commit();
+
+      final SearcherManager searchers = new SearcherManager(writer, null);
+      final List<Thread> workers = new ArrayList<>();
+
+      for (int t = 0; t < threads; t++) {
+        final Map<String, LatencyHistogram> histograms = this.histograms();
+        final Random threadRandom = new Random(t);
+        workers.add(
+            new Thread(() -> this.search(searchers, histograms, threadRandom), "searcher-" + t));
+      }
+
+      final Map<String, LatencyHistogram> writerHistograms = this.histograms();
+      workers.add(
+          new Thread(() -> this.write(writer, searchers, writerHistograms, initialDocs), "writer"));
+
+      final long start = System.nanoTime();
+      long gcMillis = gcMillis();
+      workers.forEach(Thread::start);
+
+      while (System.nanoTime() - start < durationSeconds * 1_000_000_000L) {
+        Thread.sleep(Math.min(intervalSeconds * 1000, durationSeconds * 1000));
+
+        final Map<String, LatencyHistogram> interval = this.drain();
+        final long newGcMillis = gcMillis();
+        System.out.println(
+            String.format(
+                Locale.ROOT,
+                "--- %d sec, gc %d ms, directory %.1f mb, errors %d",
+                (System.nanoTime() - start) / 1_000_000_000L,
+                newGcMillis - gcMillis,
+                dir.ramBytesUsed() / (1024 * 1024d),
+                this.errors.get()));
+        print(interval, intervalSeconds);
+        gcMillis = newGcMillis;
+      }
+
+      this.stop = true;
+      for (final Thread worker : workers) {
+        worker.join();
+      }
+      searchers.close();
+
+      this.drain();
+      System.out.println();
+      System.out.println(
+          String.format(
+              Locale.ROOT,
+              "=== total, %d sec, gc %d ms, errors %d",
+              durationSeconds,
+              gcMillis(),
+              this.errors.get()));
+      print(this.totals, durationSeconds);
+    }
+
+    return this.errors.get();
+  }
+
+  private void search(
+      SearcherManager searchers, Map<String, LatencyHistogram> histograms, Random random) {
+    while (!this.stop) {
+      final String workload =
+          BenchmarkCorpus.WORKLOADS[random.nextInt(BenchmarkCorpus.WORKLOADS.length)];
+
+      try {
+        final IndexSearcher searcher = searchers.acquire();
+        try {
+          final long start = System.nanoTime();
+          BenchmarkCorpus.query(searcher, workload, random);
+          histograms.get(workload).record(System.nanoTime() - start);
+        } finally {
+          searchers.release(searcher);
+        }
+      } catch (final Throwable e) {
+        this.error(e);
+      }
+    }
+  }
+
+  private void write(
+      IndexWriter writer,
+      SearcherManager searchers,
+      Map<String, LatencyHistogram> histograms,
+      int initialDocs) {
+    final Random random = new Random(-1);
+    long lastCommit = System.currentTimeMillis();
+    int commits = 0;
+    int nextId = initialDocs;
+
+    while (!this.stop) {
+      try {
+        // half updates of existing docs, half new docs
+        final String id =
+            Integer.toString(random.nextBoolean() ? random.nextInt(nextId) : nextId++);
+        long start = System.nanoTime();
+        writer.updateDocument(new Term("id", id), BenchmarkCorpus.document(id, random));
+        histograms.get("index").record(System.nanoTime() - start);
+
+        if (System.currentTimeMillis() - lastCommit >= COMMIT_INTERVAL_MILLIS) {
+          start = System.nanoTime();
+          writer.commit();
+          histograms.get("commit").record(System.nanoTime() - start);
+
+          start = System.nanoTime();
+          searchers.maybeRefresh();
+          histograms.get("refresh").record(System.nanoTime() - start);
+
+          if (++commits % MERGE_INTERVAL_COMMITS == 0) {
+            start = System.nanoTime();
+            writer.forceMerge(5);
+            histograms.get("merge").record(System.nanoTime() - start);
+          }
+
+          lastCommit = System.currentTimeMillis();
+        }
+      } catch (final Throwable e) {
+        this.error(e);
+      }
+    }
+  }
+
+  private void error(Throwable e) {
+    if (this.errors.incrementAndGet() <= 10) {
+      e.printStackTrace();
+    }
+  }
+
+  /** @return new histograms for a thread, one per operation */
+  private synchronized Map<String, LatencyHistogram> histograms() {
+    final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    for (final String operation : this.totals.keySet()) {
+      histograms.put(operation, new LatencyHistogram());
+    }
+    this.threadHistograms.add(histograms);
+    return histograms;
+  }
+
+  /** @return the values recorded by all threads since the last drain, also added to the totals */
+  private synchronized Map<String, LatencyHistogram> drain() {
+    final Map<String, LatencyHistogram> interval = new LinkedHashMap<>();
+
+    for (final String operation : this.totals.keySet()) {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      for (final Map<String, LatencyHistogram> histograms : this.threadHistograms) {
+        histogram.drainFrom(histograms.get(operation));
+      }
+      this.totals.get(operation).add(histogram);
+      interval.put(operation, histogram);
+    }
+
+    return interval;
+  }
+
+  private static void print(Map<String, LatencyHistogram> histograms, long seconds) {
+    System.out.println(
+        String.format(
+            Locale.ROOT,
+            "%-10s%12s%12s%12s%12s%12s%12s",
+            "operation",
+            "count",
+            "ops/sec",
+            "p50 ms",
+            "p99 ms",
+            "p99.9 ms",
+            "max ms"));
+
+    for (final Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      final LatencyHistogram histogram = entry.getValue();
+      final long count = histogram.count();
+      System.out.println(
+          String.format(
+              Locale.ROOT,
+              "%-10s%12d%12.1f%12.3f%12.3f%12.3f%12.3f",
+              entry.getKey(),
+              count,
+              count / (double) Math.max(1, seconds),
+              histogram.percentile(50) / 1e6,
+              histogram.percentile(99) / 1e6,
+              histogram.percentile(99.9) / 1e6,
+              histogram.max() / 1e6));
+    }
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+}
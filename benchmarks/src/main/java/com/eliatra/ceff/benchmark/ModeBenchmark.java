@@ -0,0 +1,141 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffMode;
+import com.eliatra.ceff.CeffUtils;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypt and decrypt throughput of the built-in modes in chunks per second (multiply with the
+ * chunk length for bytes per second). The modes reuse a cipher and key spec per thread ("cached"),
+ * the baseline ("uncached") looks up a new {@link Cipher} and creates a new {@link SecretKeySpec}
+ * for every chunk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ModeBenchmark {
+
+  @Param({"aes", "chacha"})
+  public String mode;
+
+  @Param({"1024", "4096", "16384", "65536", "262144", "1048576"})
+  public int chunkLength;
+
+  @Param({"cached", "uncached"})
+  public String cipher;
+
+  private CeffMode ceffMode;
+  private ByteBuffer plainText;
+  private ByteBuffer aad;
+  private ByteBuffer encrypted;
+  /** two chunks with different nonces, decrypting the same nonce twice is a slow path */
+  private final ByteBuffer[] cipherTexts = new ByteBuffer[2];
+
+  private final byte[][] nonces = new byte[2][];
+  private ByteBuffer nonce;
+  private ByteBuffer decrypted;
+  private long counter;
+  private boolean cached;
+  private String transformation;
+  private String algorithm;
+
+  @Setup
+  public void setup() throws Exception {
+    this.ceffMode =
+        "aes".equals(this.mode) ? CeffMode.AES_GCM_MODE : CeffMode.CHACHA20_POLY1305_MODE;
+    this.cached = "cached".equals(this.cipher);
+    this.transformation = "aes".equals(this.mode) ? "AES/GCM/NoPadding" : "ChaCha20-Poly1305";
+    this.algorithm = "aes".equals(this.mode) ? "AES" : "ChaCha20";
+
+    final byte[] bytes = new byte[this.chunkLength];
+    new Random(42).nextBytes(bytes);
+    this.plainText = ByteBuffer.wrap(bytes);
+    this.aad = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+    this.encrypted = ByteBuffer.allocate(this.chunkLength + this.ceffMode.getTagLength());
+    this.decrypted = ByteBuffer.allocate(this.chunkLength);
+    this.nonce = ByteBuffer.allocate(this.ceffMode.getNonceLength());
+
+    for (int i = 0; i < this.cipherTexts.length; i++) {
+      this.nonces[i] = this.ceffMode.randomNonce();
+      this.cipherTexts[i] =
+          ByteBuffer.wrap(
+              this.ceffMode.encrypt(
+                  this.plainText.duplicate(),
+                  this.aad.duplicate(),
+                  BenchmarkDirectories.KEY,
+                  this.nonces[i]));
+    }
+  }
+
+  @Benchmark
+  public int encrypt() throws Exception {
+    // a new nonce for every chunk without the cost of the secure random
+    this.nonce.putLong(this.nonce.capacity() - Long.BYTES, this.counter++);
+
+    this.plainText.rewind();
+    this.aad.rewind();
+    this.encrypted.clear();
+    if (!this.cached) {
+      return this.uncached(Cipher.ENCRYPT_MODE, this.plainText, this.nonce.array(), this.encrypted);
+    }
+    return this.ceffMode.encrypt(
+        this.plainText, this.aad, BenchmarkDirectories.KEY, this.nonce.array(), this.encrypted);
+  }
+
+  @Benchmark
+  public int decrypt() throws Exception {
+    final int i = (int) (this.counter++ & 1);
+    final ByteBuffer cipherText = this.cipherTexts[i];
+
+    cipherText.rewind();
+    this.aad.rewind();
+    this.decrypted.clear();
+    if (!this.cached) {
+      return this.uncached(Cipher.DECRYPT_MODE, cipherText, this.nonces[i], this.decrypted);
+    }
+    return this.ceffMode.decrypt(
+        cipherText, this.aad, BenchmarkDirectories.KEY, this.nonces[i], this.decrypted);
+  }
+
+  /** The baseline: a new cipher and key spec for every chunk */
+  private int uncached(int opmode, ByteBuffer input, byte[] nonce, ByteBuffer output)
+      throws Exception {
+    final Cipher cipher = Cipher.getInstance(this.transformation);
+    final SecretKeySpec keySpec = new SecretKeySpec(BenchmarkDirectories.KEY, this.algorithm);
+    cipher.init(
+        opmode,
+        keySpec,
+        this.ceffMode == CeffMode.AES_GCM_MODE
+            ? new GCMParameterSpec(this.ceffMode.getTagLength() * 8, nonce)
+            : new IvParameterSpec(nonce));
+    cipher.updateAAD(this.aad);
+    return cipher.doFinal(input, output);
+  }
+}
@@ -0,0 +1,83 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import com.eliatra.ceff.CeffDirectory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open (verify) and close a file depending on its size and the format version. Format
+ * version 1 scans all chunks when a file is opened, later versions only read the footer. The format
+ * version is ignored by the mmap baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OpenBenchmark {
+
+  @Param({"mmap", "ceff-aes", "ceff-chacha"})
+  public String directory;
+
+  @Param({"65536"})
+  public int chunkLength;
+
+  @Param({"1", "2", "3"})
+  public int formatVersion;
+
+  @Param({"1048576", "16777216", "134217728"})
+  public long fileSize;
+
+  private Path path;
+  private Directory dir;
+
+  @Setup
+  public void setup() throws IOException {
+    this.path = Files.createTempDirectory("ceff-open-benchmark");
+    this.dir = BenchmarkDirectories.open(this.directory, this.path, this.chunkLength);
+
+    if (this.dir instanceof CeffDirectory) {
+      ((CeffDirectory) this.dir).setFormatVersion(this.formatVersion);
+    }
+
+    BenchmarkDirectories.write(this.dir, "in", this.fileSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    this.dir.close();
+    BenchmarkDirectories.delete(this.path);
+  }
+
+  @Benchmark
+  public long open() throws IOException {
+    try (IndexInput in = this.dir.openInput("in", IOContext.READ)) {
+      return in.length();
+    }
+  }
+}
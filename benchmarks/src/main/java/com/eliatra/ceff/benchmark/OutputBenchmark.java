@@ -0,0 +1,99 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Time to sequentially write (and close) a file, with byte arrays or with vInts */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OutputBenchmark {
+
+  @Param({"mmap", "ceff-aes", "ceff-chacha"})
+  public String directory;
+
+  @Param({"65536"})
+  public int chunkLength;
+
+  @Param({"16777216"})
+  public long fileSize;
+
+  @Param({"4096"})
+  public int writeLength;
+
+  private Path path;
+  private Directory dir;
+  private byte[] bytes;
+
+  @Setup
+  public void setup() throws IOException {
+    this.path = Files.createTempDirectory("ceff-output-benchmark");
+    this.dir = BenchmarkDirectories.open(this.directory, this.path, this.chunkLength);
+    this.bytes = new byte[this.writeLength];
+    new Random(42).nextBytes(this.bytes);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    this.dir.close();
+    BenchmarkDirectories.delete(this.path);
+  }
+
+  @Benchmark
+  public long writeBytes() throws IOException {
+    final long length;
+
+    try (IndexOutput out = this.dir.createOutput("out", IOContext.DEFAULT)) {
+      while (out.getFilePointer() < this.fileSize) {
+        out.writeBytes(this.bytes, this.bytes.length);
+      }
+      length = out.getFilePointer();
+    }
+
+    this.dir.deleteFile("out");
+    return length;
+  }
+
+  @Benchmark
+  public long writeVInts() throws IOException {
+    final long length;
+
+    try (IndexOutput out = this.dir.createOutput("out", IOContext.DEFAULT)) {
+      for (int i = 0; out.getFilePointer() < this.fileSize; i++) {
+        out.writeVInt(i);
+      }
+      length = out.getFilePointer();
+    }
+
+    this.dir.deleteFile("out");
+    return length;
+  }
+}
@@ -0,0 +1,269 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.util.Accountable;
+
+/**
+ * A pool of chunk sized buffers for {@link CeffIndexInput} and {@link CeffIndexOutput} instances.
+ * Buffers are recycled when an input or output is closed, so that opening and closing files does
+ * not allocate new chunk buffers over and over again.
+ *
+ * <p>The memory budget caps the bytes of all buffers the pool holds, either lent out or idle. If
+ * the budget is exhausted idle buffers of other sizes are dropped and if this is not enough the
+ * buffer is allocated outside of the pool (and not recycled). The budget limits only the pool, not
+ * the memory used for chunk buffers: buffers allocated outside of the pool are not limited, but
+ * they are counted until they are released (see {@link #getUnpooledBytes()}, also included in
+ * {@link #ramBytesUsed()}) so that the memory used beyond the budget is reported. The buffers of
+ * clones and slices are not counted.
+ *
+ * <p>Chunk buffers can be held in direct (off-heap) memory. Scratch buffers for the cipher text are
+ * always on-heap because they are read from and written to the wrapped inputs and outputs as byte
+ * arrays.
+ *
+ * <p>Released buffers are zeroed before they are recycled, so that the plain text of a chunk is
+ * neither handed to an input of another file (or directory sharing the pool) nor kept in idle
+ * buffers.
+ *
+ * <p>Clones and slices of inputs never use pooled buffers because Lucene never closes them.
+ */
+public final class CeffBufferPool implements Accountable {
+
+  private static final byte[] ZEROS = new byte[8192];
+
+  private final long maxBytes;
+  private final boolean direct;
+  private final Map<Integer, ArrayDeque<ByteBuffer>> idleChunkBuffers = new HashMap<>();
+  private final Map<Integer, ArrayDeque<ByteBuffer>> idleHeapBuffers = new HashMap<>();
+  private final Set<ByteBuffer> lent = Collections.newSetFromMap(new IdentityHashMap<>());
+  /** acquired buffers which were allocated outside of the pool and not released yet */
+  private final Set<ByteBuffer> unpooled = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private long idleBytes;
+  private long lentBytes;
+  private long unpooledBytes;
+  private long recycleCount;
+  private long unpooledCount;
+
+  /**
+   * Create a new pool with on-heap chunk buffers
+   *
+   * @param maxBytes The memory budget in bytes
+   * @throws IllegalArgumentException if maxBytes is &lt;= 0
+   */
+  public CeffBufferPool(long maxBytes) {
+    this(maxBytes, false);
+  }
+
+  /**
+   * Create a new pool
+   *
+   * @param maxBytes The memory budget in bytes
+   * @param direct true if the chunk buffers should be held in direct (off-heap) memory
+   * @throws IllegalArgumentException if maxBytes is &lt;= 0
+   */
+  public CeffBufferPool(long maxBytes, boolean direct) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be > 0");
+    }
+
+    this.maxBytes = maxBytes;
+    this.direct = direct;
+  }
+
+  /**
+   * @param capacity The capacity
+   * @return A cleared (heap or direct) buffer for plain text chunks
+   */
+  ByteBuffer acquire(int capacity) {
+    return this.acquire(capacity, this.direct);
+  }
+
+  /**
+   * @param capacity The capacity
+   * @return A cleared heap buffer which has an accessible array
+   */
+  ByteBuffer acquireHeap(int capacity) {
+    return this.acquire(capacity, false);
+  }
+
+  private synchronized ByteBuffer acquire(int capacity, boolean direct) {
+    final ArrayDeque<ByteBuffer> idle = this.idle(direct).get(capacity);
+    ByteBuffer buffer = idle == null ? null : idle.poll();
+
+    if (buffer != null) {
+      this.idleBytes -= capacity;
+      this.recycleCount++;
+    } else {
+      this.dropIdle(capacity);
+
+      if (this.idleBytes + this.lentBytes + capacity > this.maxBytes) {
+        // budget exhausted, the buffer is not recycled but counted until it is released
+        this.unpooledCount++;
+        buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        this.unpooled.add(buffer);
+        this.unpooledBytes += capacity;
+        return buffer;
+      }
+
+      buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    this.lent.add(buffer);
+    this.lentBytes += capacity;
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Give a buffer back to the pool, it is zeroed. Buffers allocated outside of the pool are
+   * dropped, buffers which were not acquired from this pool (or were already released) are ignored.
+   *
+   * @param buffer The buffer, must not be used by the caller anymore
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer != null) {
+      // outside of the lock, the buffer is not used by anybody else
+      zero(buffer);
+      this.recycle(buffer);
+    }
+  }
+
+  private synchronized void recycle(ByteBuffer buffer) {
+    if (this.lent.remove(buffer)) {
+      this.lentBytes -= buffer.capacity();
+      this.idleBytes += buffer.capacity();
+      this.idle(buffer.isDirect())
+          .computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>())
+          .push(buffer);
+    } else if (this.unpooled.remove(buffer)) {
+      this.unpooledBytes -= buffer.capacity();
+    }
+  }
+
+  private static void zero(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      Arrays.fill(
+          buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.capacity(), (byte) 0);
+      return;
+    }
+
+    final ByteBuffer zeroed = buffer.duplicate();
+    zeroed.clear();
+    while (zeroed.hasRemaining()) {
+      zeroed.put(ZEROS, 0, Math.min(ZEROS.length, zeroed.remaining()));
+    }
+  }
+
+  /**
+   * Remove a buffer from the pool without recycling it, e.g. because it is shared with a clone
+   * which will never be closed. Buffers which were not acquired from this pool are ignored.
+   *
+   * @param buffer The buffer
+   */
+  synchronized void detach(ByteBuffer buffer) {
+    if (buffer != null && this.lent.remove(buffer)) {
+      this.lentBytes -= buffer.capacity();
+    } else if (buffer != null && this.unpooled.remove(buffer)) {
+      this.unpooledBytes -= buffer.capacity();
+    }
+  }
+
+  /** Drop idle buffers until the budget allows a new buffer with the given capacity */
+  private void dropIdle(int capacity) {
+    this.dropIdle(this.idleHeapBuffers, capacity);
+    this.dropIdle(this.idleChunkBuffers, capacity);
+  }
+
+  private void dropIdle(Map<Integer, ArrayDeque<ByteBuffer>> idle, int capacity) {
+    final Iterator<ArrayDeque<ByteBuffer>> it = idle.values().iterator();
+    while (this.idleBytes + this.lentBytes + capacity > this.maxBytes && it.hasNext()) {
+      final ArrayDeque<ByteBuffer> buffers = it.next();
+      while (this.idleBytes + this.lentBytes + capacity > this.maxBytes && !buffers.isEmpty()) {
+        this.idleBytes -= buffers.pop().capacity();
+      }
+      if (buffers.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private Map<Integer, ArrayDeque<ByteBuffer>> idle(boolean direct) {
+    return direct ? this.idleChunkBuffers : this.idleHeapBuffers;
+  }
+
+  /** @return The memory budget in bytes */
+  public long getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /** @return true if the chunk buffers are held in direct (off-heap) memory */
+  public boolean isDirect() {
+    return this.direct;
+  }
+
+  /** @return The number of bytes of the idle buffers */
+  public synchronized long getIdleBytes() {
+    return this.idleBytes;
+  }
+
+  /** @return The number of acquired buffers which were recycled */
+  public synchronized long getRecycleCount() {
+    return this.recycleCount;
+  }
+
+  /** @return The number of acquired buffers which were allocated outside of the pool */
+  public synchronized long getUnpooledCount() {
+    return this.unpooledCount;
+  }
+
+  /**
+   * @return The number of bytes of the acquired buffers which were allocated outside of the pool
+   *     (beyond the budget) and are not released yet
+   */
+  public synchronized long getUnpooledBytes() {
+    return this.unpooledBytes;
+  }
+
+  /**
+   * @return The number of bytes of all buffers held by the pool (lent out or idle) and of the
+   *     acquired buffers allocated outside of the pool
+   */
+  @Override
+  public synchronized long ramBytesUsed() {
+    return this.idleBytes + this.lentBytes + this.unpooledBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "CeffBufferPool [maxBytes="
+        + this.maxBytes
+        + ", direct="
+        + this.direct
+        + ", ramBytesUsed="
+        + this.ramBytesUsed()
+        + ", idleBytes="
+        + this.getIdleBytes()
+        + ", recycled="
+        + this.getRecycleCount()
+        + ", unpooled="
+        + this.getUnpooledCount()
+        + ", unpooledBytes="
+        + this.getUnpooledBytes()
+        + "]";
+  }
+}
@@ -0,0 +1,161 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Reads a physical CEFF file with positional reads (pread) of a {@link FileChannel}. The small
+ * reads of the header and the footer are buffered like in any other {@link BufferedIndexInput}, the
+ * cipher text of a chunk is read by {@link CeffIndexInput} with {@link #read(long, byte[], int,
+ * int)} straight into its read buffer, which is one system call per chunk and does not need a
+ * position. So clones and slices of the {@link CeffIndexInput} and the readahead share this input
+ * without cloning it.
+ *
+ * <p>Like with the NIOFSDirectory an interrupt of a reading thread closes the channel and all
+ * further reads of the file fail.
+ */
+final class CeffChannelInput extends BufferedIndexInput {
+
+  private final FileChannel channel;
+  private final long off;
+  private final long end;
+  private boolean isClone;
+
+  private CeffChannelInput(
+      String resourceDescription, FileChannel channel, long off, long length, int bufferSize) {
+    super(resourceDescription, bufferSize);
+    this.channel = channel;
+    this.off = off;
+    this.end = off + length;
+  }
+
+  /**
+   * Open the file for reading
+   *
+   * @param path The path of the file
+   * @param context The context the file is opened with (only decides the buffer size)
+   * @return the input, closing it closes the file
+   */
+  static CeffChannelInput open(Path path, IOContext context) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new CeffChannelInput(
+          "CeffChannelInput(path=\"" + path + "\")",
+          channel,
+          0,
+          channel.size(),
+          bufferSize(context));
+    } catch (final IOException | RuntimeException e) {
+      IOUtils.closeWhileHandlingException(channel);
+      throw e;
+    }
+  }
+
+  /**
+   * Read bytes at an absolute position without touching the file pointer, this is safe to be called
+   * by several threads at the same time
+   *
+   * @param pos The position relative to the start of this input
+   * @param bytes The array to read into
+   * @param offset The offset in the array
+   * @param length The number of bytes to read
+   * @throws EOFException if the input has less bytes
+   */
+  void read(long pos, byte[] bytes, int offset, int length) throws IOException {
+    if (pos < 0 || pos + length > this.length()) {
+      throw new EOFException(
+          "read past EOF: " + this + " pos=" + pos + " length=" + length + " end=" + this.length());
+    }
+
+    this.readFully(ByteBuffer.wrap(bytes, offset, length), this.off + pos);
+  }
+
+  @Override
+  protected void readInternal(ByteBuffer b) throws IOException {
+    final long pos = this.getFilePointer();
+    if (pos + b.remaining() > this.length()) {
+      throw new EOFException("read past EOF: " + this);
+    }
+
+    this.readFully(b, this.off + pos);
+  }
+
+  private void readFully(ByteBuffer b, long position) throws IOException {
+    // usually one read, the loop only continues after short reads
+    while (b.hasRemaining()) {
+      final int read = this.channel.read(b, position);
+      if (read < 0) {
+        throw new EOFException("read past EOF: " + this + " position=" + position);
+      }
+      position += read;
+    }
+  }
+
+  @Override
+  protected void seekInternal(long pos) throws IOException {
+    if (pos > this.length()) {
+      throw new EOFException("read past EOF: pos=" + pos + " vs length=" + this.length());
+    }
+  }
+
+  @Override
+  public long length() {
+    return this.end - this.off;
+  }
+
+  @Override
+  public CeffChannelInput clone() {
+    final CeffChannelInput clone = (CeffChannelInput) super.clone();
+    clone.isClone = true;
+    return clone;
+  }
+
+  @Override
+  public CeffChannelInput slice(String sliceDescription, long offset, long length)
+      throws IOException {
+    if (offset < 0 || length < 0 || offset + length > this.length()) {
+      throw new IllegalArgumentException(
+          "slice() "
+              + sliceDescription
+              + " out of bounds: offset="
+              + offset
+              + ",length="
+              + length
+              + ",fileLength="
+              + this.length()
+              + ": "
+              + this);
+    }
+
+    final CeffChannelInput slice =
+        new CeffChannelInput(
+            this.getFullSliceDescription(sliceDescription),
+            this.channel,
+            this.off + offset,
+            length,
+            this.getBufferSize());
+    slice.isClone = true;
+    return slice;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!this.isClone) {
+      this.channel.close();
+    }
+  }
+}
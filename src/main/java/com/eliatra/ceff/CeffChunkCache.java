@@ -0,0 +1,346 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.Accountable;
+
+/**
+ * A bounded cache of decrypted chunks which is shared by all inputs (including clones and slices)
+ * of one or more {@link CeffDirectory} instances. Chunks are keyed by file and absolute chunk
+ * number.
+ *
+ * <p>Eviction is a segmented LRU (SLRU): new chunks are admitted to a probationary segment and only
+ * promoted to the protected segment when they are hit again. Reads with a {@link
+ * IOContext.Context#MERGE} or a read once context do neither admit nor promote chunks, so merges
+ * and other scans can not flush out query-hot chunks.
+ *
+ * <p>The cache is split into independently locked stripes to reduce contention between query
+ * threads, each stripe gets an equal share of the memory budget.
+ */
+public final class CeffChunkCache implements Accountable {
+
+  private static final int STRIPES = 16;
+
+  private final long maxBytes;
+  private final boolean offHeap;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a new on-heap chunk cache
+   *
+   * @param maxBytes The memory budget in bytes
+   * @throws IllegalArgumentException if maxBytes is &lt;= 0
+   */
+  public CeffChunkCache(long maxBytes) {
+    this(maxBytes, false);
+  }
+
+  /**
+   * Create a new chunk cache
+   *
+   * @param maxBytes The memory budget in bytes
+   * @param offHeap true if the decrypted chunks should be held in direct (off-heap) memory
+   * @throws IllegalArgumentException if maxBytes is &lt;= 0
+   */
+  public CeffChunkCache(long maxBytes, boolean offHeap) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be > 0");
+    }
+
+    this.maxBytes = maxBytes;
+    this.offHeap = offHeap;
+
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Stripe(maxBytes / STRIPES);
+    }
+  }
+
+  /**
+   * @param file The file key
+   * @param chunk The absolute chunk number
+   * @param context The context of the read
+   * @return A view (position 0, limit the plain text length of the chunk) on the cached chunk or
+   *     null if the chunk is not cached. The content of the view must not be modified.
+   */
+  ByteBuffer get(FileKey file, long chunk, IOContext context) {
+    final ChunkKey key = new ChunkKey(file, chunk);
+    final ByteBuffer cached = this.stripe(key).get(key, admits(context));
+
+    if (cached == null) {
+      this.misses.increment();
+      return null;
+    }
+
+    this.hits.increment();
+    return cached.duplicate();
+  }
+
+  /**
+   * Put a decrypted chunk into the cache. Chunks with a context which is not admitted are ignored.
+   *
+   * @param file The file key
+   * @param chunk The absolute chunk number
+   * @param context The context of the read
+   * @param plainText The decrypted chunk allocated with {@link #allocate(int)}. Must not be
+   *     modified after it was put into the cache.
+   */
+  void put(FileKey file, long chunk, IOContext context, ByteBuffer plainText) {
+    if (admits(context)) {
+      final ChunkKey key = new ChunkKey(file, chunk);
+      this.stripe(key).put(key, plainText);
+    }
+  }
+
+  /**
+   * @param length The capacity
+   * @return A new (heap or direct) buffer to decrypt a chunk into before it is put into the cache
+   */
+  ByteBuffer allocate(int length) {
+    return this.offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+  }
+
+  /**
+   * @param context The context of the read
+   * @return true if chunks read with this context are admitted to the cache
+   */
+  static boolean admits(IOContext context) {
+    return context.context != IOContext.Context.MERGE && !context.readOnce;
+  }
+
+  /** Remove all chunks from the cache */
+  public void clear() {
+    for (final Stripe stripe : this.stripes) {
+      stripe.clear();
+    }
+  }
+
+  /** @return The memory budget in bytes */
+  public long getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /** @return true if the chunks are held in direct (off-heap) memory */
+  public boolean isOffHeap() {
+    return this.offHeap;
+  }
+
+  /** @return The number of bytes currently held by the cache */
+  public long getSizeInBytes() {
+    long size = 0;
+    for (final Stripe stripe : this.stripes) {
+      size += stripe.sizeInBytes();
+    }
+    return size;
+  }
+
+  /** @return The number of bytes currently held by the cache */
+  @Override
+  public long ramBytesUsed() {
+    return this.getSizeInBytes();
+  }
+
+  /** @return The number of cache hits */
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  /** @return The number of cache misses */
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  /** @return The number of evicted chunks */
+  public long getEvictionCount() {
+    return this.evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "CeffChunkCache [maxBytes="
+        + this.maxBytes
+        + ", offHeap="
+        + this.offHeap
+        + ", sizeInBytes="
+        + this.getSizeInBytes()
+        + ", hits="
+        + this.getHitCount()
+        + ", misses="
+        + this.getMissCount()
+        + ", evictions="
+        + this.getEvictionCount()
+        + "]";
+  }
+
+  private Stripe stripe(ChunkKey key) {
+    return this.stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  /** Identifies one written physical file (file names may be reused after a file was deleted) */
+  static final class FileKey {
+    private final String name;
+    private final long id;
+
+    /**
+     * @param name The file name
+     * @param id A random id which is unique for every written file
+     */
+    FileKey(String name, long id) {
+      this.name = name;
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.name.hashCode() + Long.hashCode(this.id);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof FileKey)) {
+        return false;
+      }
+      final FileKey other = (FileKey) obj;
+      return this.id == other.id && this.name.equals(other.name);
+    }
+  }
+
+  private static final class ChunkKey {
+    private final FileKey file;
+    private final long chunk;
+
+    private ChunkKey(FileKey file, long chunk) {
+      this.file = file;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int hashCode() {
+      // spread the chunk numbers of one file over all stripes
+      final int h = 31 * this.file.hashCode() + Long.hashCode(this.chunk);
+      return h ^ (h >>> 16);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof ChunkKey)) {
+        return false;
+      }
+      final ChunkKey other = (ChunkKey) obj;
+      return this.chunk == other.chunk && this.file.equals(other.file);
+    }
+  }
+
+  private final class Stripe {
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // both maps are in insertion order, the eldest entry is the least recently used one
+    private final LinkedHashMap<ChunkKey, ByteBuffer> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<ChunkKey, ByteBuffer> protectedChunks = new LinkedHashMap<>();
+    private long probationBytes;
+    private long protectedBytes;
+
+    private Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.maxProtectedBytes = (maxBytes * 4) / 5;
+    }
+
+    synchronized ByteBuffer get(ChunkKey key, boolean promote) {
+      ByteBuffer cached = this.protectedChunks.get(key);
+
+      if (cached != null) {
+        if (promote) {
+          // move to the most recently used position
+          this.protectedChunks.remove(key);
+          this.protectedChunks.put(key, cached);
+        }
+        return cached;
+      }
+
+      cached = this.probation.get(key);
+
+      if (cached != null && promote) {
+        this.probation.remove(key);
+        this.probationBytes -= cached.capacity();
+        this.protectedChunks.put(key, cached);
+        this.protectedBytes += cached.capacity();
+
+        // demote the least recently used protected chunks to probation
+        final Iterator<Map.Entry<ChunkKey, ByteBuffer>> it =
+            this.protectedChunks.entrySet().iterator();
+        while (this.protectedBytes > this.maxProtectedBytes && it.hasNext()) {
+          final Map.Entry<ChunkKey, ByteBuffer> eldest = it.next();
+          it.remove();
+          this.protectedBytes -= eldest.getValue().capacity();
+          this.probation.put(eldest.getKey(), eldest.getValue());
+          this.probationBytes += eldest.getValue().capacity();
+        }
+
+        this.evict();
+      }
+
+      return cached;
+    }
+
+    synchronized void put(ChunkKey key, ByteBuffer plainText) {
+      if (plainText.capacity() > this.maxBytes
+          || this.protectedChunks.containsKey(key)
+          || this.probation.containsKey(key)) {
+        return;
+      }
+
+      this.probation.put(key, plainText);
+      this.probationBytes += plainText.capacity();
+      this.evict();
+    }
+
+    private void evict() {
+      while (this.probationBytes + this.protectedBytes > this.maxBytes) {
+        final Map<ChunkKey, ByteBuffer> victims =
+            this.probation.isEmpty() ? this.protectedChunks : this.probation;
+        final Iterator<ByteBuffer> it = victims.values().iterator();
+        final int size = it.next().capacity();
+        it.remove();
+
+        if (victims == this.probation) {
+          this.probationBytes -= size;
+        } else {
+          this.protectedBytes -= size;
+        }
+
+        CeffChunkCache.this.evictions.increment();
+      }
+    }
+
+    synchronized void clear() {
+      this.probation.clear();
+      this.protectedChunks.clear();
+      this.probationBytes = 0;
+      this.protectedBytes = 0;
+    }
+
+    synchronized long sizeInBytes() {
+      return this.probationBytes + this.protectedBytes;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Decides per file with which chunk length a {@link CeffDirectory} writes it, see {@link
+ * CeffDirectory#setChunkLengthStrategy(CeffChunkLengthStrategy)}. Files are read with the chunk
+ * length stored in their footer, so the chunk length of a file can be changed at any time.
+ *
+ * <p>Small chunks are cheaper for random access files (e.g. the terms index, doc values and points)
+ * because a lookup of a few bytes decrypts (and caches) less. Large chunks are cheaper for files
+ * which are read sequentially in bulk (e.g. stored fields and postings) because they need fewer
+ * AEAD calls and every chunk adds its nonce, aad and tag to the file.
+ */
+@FunctionalInterface
+public interface CeffChunkLengthStrategy {
+
+  /**
+   * @param fileName The name of the file
+   * @param context The context the file is created with
+   * @return The chunk length, between {@link CeffUtils#CHUNK_SIZE_MIN} and {@link
+   *     CeffUtils#CHUNK_SIZE_MAX}
+   */
+  int chunkLength(String fileName, IOContext context);
+
+  /**
+   * A strategy which decides by file extension (e.g. "tip", "dvd" or "fdt", files without an
+   * extension like "segments_1" have the extension "")
+   *
+   * @param defaultChunkLength The chunk length of all files with other extensions
+   * @param chunkLengths The chunk lengths by extension, may be empty
+   * @return The strategy
+   * @throws IllegalArgumentException if a chunk length is invalid or an extension contains a dot
+   */
+  static CeffChunkLengthStrategy byExtension(
+      int defaultChunkLength, Map<String, Integer> chunkLengths) {
+    CeffUtils.validateChunkLength(defaultChunkLength);
+    final Map<String, Integer> copy = new HashMap<>(chunkLengths);
+
+    for (final Map.Entry<String, Integer> entry : copy.entrySet()) {
+      if (entry.getKey() == null || entry.getKey().indexOf('.') >= 0) {
+        throw new IllegalArgumentException("invalid extension '" + entry.getKey() + "'");
+      }
+      CeffUtils.validateChunkLength(entry.getValue());
+    }
+
+    return (fileName, context) ->
+        copy.getOrDefault(
+            Objects.toString(IndexFileNames.getExtension(fileName), ""), defaultChunkLength);
+  }
+}
@@ -0,0 +1,141 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Thread confined cache of {@link Cipher} instances and their {@link SecretKeySpec}. Avoids the JCA
+ * provider lookup and the key setup for every chunk, so that the per chunk cost is only a re-init
+ * with a new nonce. The JCA providers keep the expanded key of the last init, so re-using the same
+ * {@link SecretKeySpec} with the same cipher also skips the key schedule.
+ *
+ * <p>Every thread keeps one cipher for each of the last {@value #MAX_KEYS} keys it used (least
+ * recently used first evicted). Format version 3 derives a key per file, so a thread which reads
+ * several files in turn (e.g. a query over several fields or a merge) would otherwise re-key the
+ * cipher for almost every chunk.
+ *
+ * <p>Encryption and decryption use separate ciphers so that decrypting a chunk never interferes
+ * with the nonce reuse checks the JCA providers perform for encryption.
+ */
+final class CeffCipherCache {
+
+  /** the number of keys a thread keeps a cipher for, per operation mode */
+  static final int MAX_KEYS = 8;
+
+  private final String transformation;
+  private final String keyAlgorithm;
+  /** per thread the entries ordered by their last use, the most recently used first */
+  private final ThreadLocal<Entry[]> encryptEntries =
+      ThreadLocal.withInitial(() -> new Entry[MAX_KEYS]);
+
+  private final ThreadLocal<Entry[]> decryptEntries =
+      ThreadLocal.withInitial(() -> new Entry[MAX_KEYS]);
+
+  /**
+   * @param transformation The JCA transformation, e.g. "AES/GCM/NoPadding"
+   * @param keyAlgorithm The JCA key algorithm, e.g. "AES"
+   */
+  CeffCipherCache(String transformation, String keyAlgorithm) {
+    this.transformation = transformation;
+    this.keyAlgorithm = keyAlgorithm;
+  }
+
+  /**
+   * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+   * @param key The key which will be used to init the cipher
+   * @return The cached (not yet initialized) cipher of the current thread for the key together with
+   *     the key spec for the key
+   * @throws GeneralSecurityException if the transformation is not available
+   */
+  Entry get(int opmode, byte[] key) throws GeneralSecurityException {
+    final Entry[] entries = this.entries(opmode).get();
+
+    int i = 0;
+    while (i < entries.length - 1
+        && entries[i] != null
+        && !MessageDigest.isEqual(entries[i].key, key)) {
+      i++;
+    }
+
+    Entry entry = entries[i];
+    if (entry == null) {
+      entry = new Entry(Cipher.getInstance(this.transformation));
+    }
+
+    if (entry.key == null || !MessageDigest.isEqual(entry.key, key)) {
+      // a new or the least recently used entry
+      entry.key = key.clone();
+      entry.keySpec = new SecretKeySpec(key, this.keyAlgorithm);
+      entry.nonce = null;
+    }
+
+    // move to the front
+    System.arraycopy(entries, 0, entries, 1, i);
+    entries[0] = entry;
+    return entry;
+  }
+
+  /**
+   * Discard the cipher of the current thread for the key, e.g. after it failed and is in an
+   * undefined state.
+   *
+   * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+   * @param key The key the cipher was initialized with
+   */
+  void invalidate(int opmode, byte[] key) {
+    if (key == null) {
+      // failed before a cipher was used
+      return;
+    }
+
+    final Entry[] entries = this.entries(opmode).get();
+
+    for (int i = 0; i < entries.length && entries[i] != null; i++) {
+      if (MessageDigest.isEqual(entries[i].key, key)) {
+        System.arraycopy(entries, i + 1, entries, i, entries.length - i - 1);
+        entries[entries.length - 1] = null;
+        return;
+      }
+    }
+  }
+
+  private ThreadLocal<Entry[]> entries(int opmode) {
+    return opmode == Cipher.ENCRYPT_MODE ? this.encryptEntries : this.decryptEntries;
+  }
+
+  static final class Entry {
+    final Cipher cipher;
+    private byte[] key;
+    private SecretKeySpec keySpec;
+    private byte[] nonce;
+
+    private Entry(Cipher cipher) {
+      this.cipher = cipher;
+    }
+
+    SecretKeySpec keySpec() {
+      return this.keySpec;
+    }
+
+    /**
+     * Record the nonce for the next init.
+     *
+     * @param nonce The nonce the cipher will be initialized with
+     * @return true if the cipher was last initialized with the same key and nonce
+     */
+    boolean reusesNonce(byte[] nonce) {
+      final boolean reuse = this.nonce != null && MessageDigest.isEqual(this.nonce, nonce);
+      this.nonce = nonce.clone();
+      return reuse;
+    }
+  }
+}
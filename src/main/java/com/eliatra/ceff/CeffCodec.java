@@ -0,0 +1,40 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import org.apache.lucene.codecs.CompoundFormat;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.lucene87.Lucene87Codec;
+
+/**
+ * The default codec of Lucene with the {@link CeffCompoundFormat}, which builds the compound files
+ * of encrypted segments without decrypting and encrypting their files again:
+ *
+ * <pre>
+ * new IndexWriterConfig(analyzer).setCodec(new CeffCodec());
+ * </pre>
+ *
+ * The codec is registered under the name {@value #NAME}, so segments written with it are read with
+ * it without further configuration.
+ */
+public final class CeffCodec extends FilterCodec {
+
+  /** The name of the codec */
+  public static final String NAME = "Ceff87";
+
+  private final CompoundFormat compoundFormat = new CeffCompoundFormat();
+
+  public CeffCodec() {
+    super(NAME, new Lucene87Codec());
+  }
+
+  @Override
+  public CompoundFormat compoundFormat() {
+    return this.compoundFormat;
+  }
+}
@@ -0,0 +1,188 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.CompoundDirectory;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+
+/** Reads a compound file written by {@link CeffCompoundFormat} */
+final class CeffCompoundDirectory extends CompoundDirectory {
+
+  private final Directory directory;
+  private final CeffDirectory ceffDirectory;
+  private final String segmentName;
+  private final String dataFile;
+  private final Map<String, Entry> entries;
+  private final IndexInput handle;
+
+  CeffCompoundDirectory(Directory directory, SegmentInfo si, IOContext context) throws IOException {
+    this.directory = directory;
+    this.ceffDirectory = CeffCompoundFormat.ceffDirectory(directory);
+    this.segmentName = si.name;
+    this.dataFile = IndexFileNames.segmentFileName(si.name, "", CeffCompoundFormat.DATA_EXTENSION);
+    this.entries =
+        this.readEntries(
+            si.getId(),
+            IndexFileNames.segmentFileName(si.name, "", CeffCompoundFormat.ENTRIES_EXTENSION));
+
+    boolean success = false;
+    this.handle = directory.openInput(this.dataFile, context);
+    try {
+      CodecUtil.checkIndexHeader(
+          this.handle,
+          CeffCompoundFormat.DATA_CODEC,
+          CeffCompoundFormat.VERSION_START,
+          CeffCompoundFormat.VERSION_CURRENT,
+          si.getId(),
+          CeffCompoundFormat.keyCheck(this.ceffDirectory));
+      CodecUtil.retrieveChecksum(this.handle);
+
+      final long end = this.handle.length() - CodecUtil.footerLength();
+      for (final Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+        if (entry.getValue().offset + entry.getValue().length > end) {
+          throw new CorruptIndexException(
+              "file " + entry.getKey() + " exceeds the compound file", this.handle);
+        }
+      }
+
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(this.handle);
+      }
+    }
+  }
+
+  private Map<String, Entry> readEntries(byte[] segmentId, String entriesFile) throws IOException {
+    try (ChecksumIndexInput in =
+        this.directory.openChecksumInput(entriesFile, IOContext.READONCE)) {
+      Throwable priorE = null;
+      final Map<String, Entry> entries = new HashMap<>();
+
+      try {
+        CodecUtil.checkIndexHeader(
+            in,
+            CeffCompoundFormat.ENTRY_CODEC,
+            CeffCompoundFormat.VERSION_START,
+            CeffCompoundFormat.VERSION_CURRENT,
+            segmentId,
+            "");
+
+        final int count = in.readVInt();
+        for (int i = 0; i < count; i++) {
+          final String id = in.readString();
+          final boolean encrypted = in.readByte() == 1;
+          final Entry entry = new Entry(encrypted, in.readLong(), in.readLong());
+
+          if (encrypted && this.ceffDirectory == null) {
+            throw new CorruptIndexException(
+                "file " + id + " is encrypted but " + this.directory + " is no CeffDirectory", in);
+          }
+
+          if (entries.put(id, entry) != null) {
+            throw new CorruptIndexException("duplicate file " + id, in);
+          }
+        }
+      } catch (final Throwable e) {
+        priorE = e;
+      } finally {
+        CodecUtil.checkFooter(in, priorE);
+      }
+
+      return Collections.unmodifiableMap(entries);
+    }
+  }
+
+  @Override
+  public IndexInput openInput(String name, IOContext context) throws IOException {
+    this.ensureOpen();
+    final String id = IndexFileNames.stripSegmentName(name);
+    final Entry entry = this.entries.get(id);
+    if (entry == null) {
+      throw new NoSuchFileException(
+          "no file " + id + " in compound file " + this.dataFile + " (fileName=" + name + ")");
+    }
+
+    final IndexInput slice = this.handle.slice(name, entry.offset, entry.length);
+    return entry.encrypted ? this.ceffDirectory.newInput(name, slice, context) : slice;
+  }
+
+  @Override
+  public String[] listAll() {
+    this.ensureOpen();
+    final String[] names = new String[this.entries.size()];
+    int i = 0;
+    for (final String id : this.entries.keySet()) {
+      names[i++] = this.segmentName + id;
+    }
+    return names;
+  }
+
+  @Override
+  public long fileLength(String name) throws IOException {
+    this.ensureOpen();
+    final Entry entry = this.entries.get(IndexFileNames.stripSegmentName(name));
+    if (entry == null) {
+      throw new NoSuchFileException(name);
+    }
+    // like CeffDirectory the length of the cipher text
+    return entry.length;
+  }
+
+  @Override
+  public Set<String> getPendingDeletions() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    // the cipher text of the files is authenticated when they are read
+    CodecUtil.checksumEntireFile(this.handle);
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.handle.close();
+  }
+
+  @Override
+  public String toString() {
+    return "CeffCompoundDirectory(segment=\""
+        + this.segmentName
+        + "\" in dir="
+        + this.directory
+        + ")";
+  }
+
+  /** A file in the compound file */
+  private static final class Entry {
+    private final boolean encrypted;
+    private final long offset;
+    private final long length;
+
+    private Entry(boolean encrypted, long offset, long length) {
+      this.encrypted = encrypted;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
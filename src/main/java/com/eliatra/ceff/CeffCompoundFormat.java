@@ -0,0 +1,253 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.CompoundDirectory;
+import org.apache.lucene.codecs.CompoundFormat;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.BufferedChecksum;
+import org.apache.lucene.store.BufferedChecksumIndexInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * A compound format which embeds the encrypted files of a segment as they are, see {@link
+ * CeffCodec}. The default compound format reads every file of a freshly flushed segment through a
+ * decrypting input and writes it again through an encrypting output, which decrypts and encrypts
+ * every small segment of a near real-time refresh twice. This format copies the cipher text of the
+ * files (whole CEFF files with their own header, chunks and footer) into the data file ("ccfs"),
+ * their chunks and footers are verified when they are read. The data file itself is not encrypted,
+ * the names, offsets and lengths of the files are stored in the encrypted entries file ("ccfe").
+ *
+ * <p>The files in a compound file are read like files of the {@link CeffDirectory}, an input of a
+ * file decrypts a slice of the data file which starts with the first chunk of the file.
+ *
+ * <p>The CeffDirectory is found with {@link FilterDirectory#unwrap(Directory)}, without one (or for
+ * pass-through files) the plain files are copied like by the default compound format. The cipher
+ * text is copied without opening the files if the given directory only wraps the CeffDirectory with
+ * FilterDirectory instances which open its files as they are (like the wrappers of the
+ * IndexWriter). Otherwise the files are read through the given directory, the cipher text is only
+ * copied if it returns the decrypting input of the CeffDirectory for the physical file. Files which
+ * come from somewhere else (e.g. the cache of a {@link
+ * org.apache.lucene.store.NRTCachingDirectory}) are encrypted into the data file. The header of the
+ * data file carries a check value of the key (not the key itself), so that it is only read and
+ * copied by directories with the same key.
+ */
+public final class CeffCompoundFormat extends CompoundFormat {
+
+  /** Extension of the data file */
+  static final String DATA_EXTENSION = "ccfs";
+
+  /** Extension of the entries file */
+  static final String ENTRIES_EXTENSION = "ccfe";
+
+  static final String DATA_CODEC = "CeffCompoundData";
+  static final String ENTRY_CODEC = "CeffCompoundEntries";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  @Override
+  public CompoundDirectory getCompoundReader(Directory dir, SegmentInfo si, IOContext context)
+      throws IOException {
+    return new CeffCompoundDirectory(dir, si, context);
+  }
+
+  @Override
+  public void write(Directory dir, SegmentInfo si, IOContext context) throws IOException {
+    final String dataFile = IndexFileNames.segmentFileName(si.name, "", DATA_EXTENSION);
+    final String entriesFile = IndexFileNames.segmentFileName(si.name, "", ENTRIES_EXTENSION);
+    final CeffDirectory ceffDirectory = ceffDirectory(dir);
+    // the files are not opened to find out whether they can be copied as they are, opening a file
+    // of format version 1 reads all of its chunks
+    final boolean physical = ceffDirectory != null && ceffDirectory.opensPhysicalFiles(dir);
+
+    try (IndexOutput data = dir.createOutput(dataFile, context);
+        IndexOutput entries = dir.createOutput(entriesFile, context)) {
+      CodecUtil.writeIndexHeader(
+          data, DATA_CODEC, VERSION_CURRENT, si.getId(), keyCheck(ceffDirectory));
+      CodecUtil.writeIndexHeader(entries, ENTRY_CODEC, VERSION_CURRENT, si.getId(), "");
+
+      entries.writeVInt(si.files().size());
+      for (final String file : si.files()) {
+        final long offset = data.getFilePointer();
+        final boolean encrypted;
+
+        if (physical && !ceffDirectory.isPassThrough(file)) {
+          // the chunks and the footer are authenticated when the file is read from the compound
+          // file
+          try (IndexInput in = ceffDirectory.openPhysicalInput(file, IOContext.READONCE)) {
+            encrypted = in.length() > 0;
+            data.copyBytes(in, in.length());
+          }
+        } else {
+          encrypted = write(dir, ceffDirectory, file, data, context);
+        }
+
+        entries.writeString(IndexFileNames.stripSegmentName(file));
+        entries.writeByte((byte) (encrypted ? 1 : 0));
+        entries.writeLong(offset);
+        entries.writeLong(data.getFilePointer() - offset);
+      }
+
+      CodecUtil.writeFooter(data);
+      CodecUtil.writeFooter(entries);
+    }
+  }
+
+  /**
+   * Write a file read through a directory which does not open the physical files of the
+   * CeffDirectory as they are (e.g. a cache or a directory which encodes the files)
+   *
+   * @return true if the file was written encrypted
+   */
+  private static boolean write(
+      Directory dir, CeffDirectory ceffDirectory, String file, IndexOutput data, IOContext context)
+      throws IOException {
+    try (IndexInput in = dir.openInput(file, IOContext.READONCE)) {
+      if (ceffDirectory != null && ceffDirectory.isPhysicalInput(in, file)) {
+        // nevertheless the physical file, its cipher text is copied from the open input (clones
+        // are not closed)
+        final IndexInput physical = ((CeffIndexInput) in).clonePhysicalInput();
+        data.copyBytes(physical, physical.length());
+        return true;
+      } else if (ceffDirectory != null && !ceffDirectory.isPassThrough(file)) {
+        try (IndexOutput out =
+            ceffDirectory.newOutput(
+                new EntryOutput(data, file), context, ceffDirectory.mode(file, context))) {
+          copyVerified(in, out);
+        }
+        return true;
+      } else {
+        copyVerified(in, data);
+        return false;
+      }
+    }
+  }
+
+  /** Copy a plain file and verify its checksum like the default compound format */
+  private static void copyVerified(IndexInput file, IndexOutput out) throws IOException {
+    final ChecksumIndexInput in = new BufferedChecksumIndexInput(file);
+    out.copyBytes(in, in.length() - CodecUtil.footerLength());
+    final long checksum = CodecUtil.checkFooter(in);
+    out.writeInt(CodecUtil.FOOTER_MAGIC);
+    out.writeInt(0);
+    out.writeLong(checksum);
+  }
+
+  /**
+   * @return The check value of the key of the directory stored in the header of the data file, an
+   *     empty string without a CeffDirectory
+   */
+  static String keyCheck(CeffDirectory ceffDirectory) {
+    return ceffDirectory != null ? keyCheck(ceffDirectory.getKey()) : "";
+  }
+
+  private static String keyCheck(byte[] key) {
+    try {
+      final Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      final byte[] check =
+          mac.doFinal("ceff compound key check".getBytes(StandardCharsets.US_ASCII));
+      return StringHelper.idToString(Arrays.copyOf(check, StringHelper.ID_LENGTH));
+    } catch (final GeneralSecurityException e) {
+      // can not happen, HmacSHA256 is always available
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Check that a data file was written with the key, the files in it stay encrypted with the key
+   * they were written with when it is copied
+   *
+   * @param from The directory the data file is copied from
+   * @param src The name of the data file
+   * @param key The key of the directory the data file is copied to
+   * @throws IllegalArgumentException if the data file was written with another key or without a
+   *     CeffDirectory
+   */
+  static void checkKey(Directory from, String src, byte[] key) throws IOException {
+    try (IndexInput in = from.openInput(src, IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, DATA_CODEC, VERSION_START, VERSION_CURRENT);
+      in.readBytes(new byte[StringHelper.ID_LENGTH], 0, StringHelper.ID_LENGTH);
+      CodecUtil.checkIndexHeaderSuffix(in, keyCheck(key));
+    } catch (final CorruptIndexException e) {
+      throw new IllegalArgumentException(
+          "The compound file " + src + " was not written with the key of this directory", e);
+    }
+  }
+
+  /** @return The CeffDirectory wrapped by the directory or null if there is none */
+  static CeffDirectory ceffDirectory(Directory dir) {
+    final Directory unwrapped = FilterDirectory.unwrap(dir);
+    return unwrapped instanceof CeffDirectory ? (CeffDirectory) unwrapped : null;
+  }
+
+  /** @return true if the file is a data file of this format */
+  static boolean isDataFile(String fileName) {
+    return IndexFileNames.matchesExtension(fileName, DATA_EXTENSION);
+  }
+
+  /**
+   * Writes an encrypted file into the data file, which stays open when the file is closed. The name
+   * of the output is the name of the file, the checksum is the one of the bytes of the file.
+   */
+  static final class EntryOutput extends IndexOutput {
+    private final IndexOutput data;
+    private final long start;
+    private final Checksum crc = new BufferedChecksum(new CRC32());
+
+    EntryOutput(IndexOutput data, String name) {
+      super("EntryOutput(" + name + " in " + data + ")", name);
+      this.data = data;
+      this.start = data.getFilePointer();
+    }
+
+    @Override
+    public void close() {
+      // the data file is closed by the compound format
+    }
+
+    @Override
+    public long getFilePointer() {
+      return this.data.getFilePointer() - this.start;
+    }
+
+    @Override
+    public long getChecksum() {
+      return this.crc.getValue();
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      this.crc.update(b);
+      this.data.writeByte(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      this.crc.update(b, offset, length);
+      this.data.writeBytes(b, offset, length);
+    }
+  }
+}
@@ -8,29 +8,63 @@
 package com.eliatra.ceff;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
 import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.IOUtils;
 
 /**
  * A Lucene {@link FSDirectory} implementations which wraps another FSDirectory and encrypt and
  * decrypt all read and write requests with a symmetric AEAD encryption scheme (see {@link
  * CeffMode}).
+ *
+ * <p>The directory reports the memory used by the buffers of its open inputs and outputs (see
+ * {@link #ramBytesUsed()}). Clones and slices of inputs are not included because Lucene never
+ * closes them.
  */
-public final class CeffDirectory extends FSDirectory {
+public final class CeffDirectory extends FSDirectory implements Accountable {
 
   private final FSDirectory delegate;
   private final int chunkLength;
   private final byte[] key;
   private final CeffMode mode;
+  private volatile int formatVersion = CeffUtils.CURRENT_FORMAT_VERSION;
+  private volatile CeffChunkCache chunkCache;
+  private volatile CeffBufferPool bufferPool;
+  /** the executor and the max number of in-flight chunks, replaced as a whole */
+  private volatile ExecutorSetting encryption = ExecutorSetting.NONE;
+  /** the executor and the number of chunks read ahead at once, replaced as a whole */
+  private volatile ExecutorSetting readahead = ExecutorSetting.NONE;
+
+  private volatile CeffMetricsListener metricsListener;
+  private volatile CeffEncryptionPolicy encryptionPolicy;
+  private volatile CeffChunkLengthStrategy chunkLengthStrategy;
+  private volatile boolean positionalReads;
+  private volatile boolean partialDecryption;
+  private final Set<Accountable> openFiles = ConcurrentHashMap.newKeySet();
 
   /**
-   * Create a new encrypted directory. Uses a chunks length of 64kb.
+   * Create a new encrypted directory. Uses a chunks length of 64kb and ChaCha20-Poly1305 on Java 11
+   * and above. {@link CeffModeCalibration} measures which mode is fastest on this machine.
    *
    * @param delegate The wrapped implementation, typically {@link MMapDirectory} or {@link
    *     NIOFSDirectory}
@@ -91,15 +125,47 @@ public final class CeffDirectory extends FSDirectory {
   public IndexInput openInput(String fileName, IOContext context) throws IOException {
     this.ensureOpen();
     this.ensureCanRead(fileName);
-    final IndexInput tmpInput = this.delegate.openInput(fileName, context);
+    final IndexInput tmpInput =
+        this.positionalReads
+            ? CeffChannelInput.open(this.getDirectory().resolve(fileName), context)
+            : this.delegate.openInput(fileName, context);
 
-    if (tmpInput.length() == 0) {
+    if (tmpInput.length() == 0 || this.isPassThrough(fileName)) {
       return tmpInput;
     }
 
+    final CeffIndexInput in = this.newInput(fileName, tmpInput, context);
+    in.setDirectory(this);
+    return in;
+  }
+
+  /**
+   * Decrypt a physical CEFF file, also one which is stored in a compound file
+   *
+   * @param fileName The name of the file
+   * @param tmpInput The physical file (e.g. a slice of the compound file), closed with the returned
+   *     input
+   * @param context The context the file is opened with
+   * @return The decrypting input
+   */
+  CeffIndexInput newInput(String fileName, IndexInput tmpInput, IOContext context)
+      throws IOException {
     try {
-      return new CeffIndexInput(tmpInput, this.key);
-    } catch (final IOException e) {
+      final ExecutorSetting readahead = this.readahead;
+      return new CeffIndexInput(
+          fileName,
+          tmpInput,
+          this.key,
+          context,
+          this.chunkCache,
+          this.bufferPool,
+          this.openFiles,
+          readahead.executor,
+          readahead.chunks,
+          this.fileMetrics(fileName, context),
+          this.partialDecryption);
+    } catch (final IOException | RuntimeException e) {
+      // e.g. an unencrypted file
       tmpInput.close();
       throw e;
     }
@@ -107,10 +173,12 @@ public final class CeffDirectory extends FSDirectory {
 
   @Override
   public IndexOutput createOutput(String fileName, IOContext context) throws IOException {
-    final IndexOutput tmpOutput = this.delegate.createOutput(fileName, context);
+    // written by this directory like files are deleted, renamed and synced by it (the wrapped one
+    // only reads), so that a name which is still pending deletion is brought back to life
+    final IndexOutput tmpOutput = super.createOutput(fileName, context);
     try {
-      return new CeffIndexOutput(tmpOutput, this.chunkLength, this.key, this.mode);
-    } catch (final IOException e) {
+      return this.newOutput(tmpOutput, context);
+    } catch (final IOException | RuntimeException e) {
       tmpOutput.close();
       throw e;
     }
@@ -119,21 +187,227 @@ public final class CeffDirectory extends FSDirectory {
   @Override
   public IndexOutput createTempOutput(String prefix, String suffix, IOContext context)
       throws IOException {
-    final IndexOutput tmpOutput = this.delegate.createTempOutput(prefix, suffix, context);
+    final IndexOutput tmpOutput = super.createTempOutput(prefix, suffix, context);
     try {
-      return new CeffIndexOutput(tmpOutput, this.chunkLength, this.key, this.mode);
-    } catch (final IOException e) {
+      return this.newOutput(tmpOutput, context);
+    } catch (final IOException | RuntimeException e) {
       tmpOutput.close();
       throw e;
     }
   }
 
+  private IndexOutput newOutput(IndexOutput tmpOutput, IOContext context) throws IOException {
+    if (this.isPassThrough(tmpOutput.getName())) {
+      return tmpOutput;
+    }
+
+    return this.newOutput(tmpOutput, context, this.mode(tmpOutput.getName(), context));
+  }
+
+  /** @return The mode a file which is not passed through is written with */
+  CeffMode mode(String fileName, IOContext context) {
+    final CeffEncryptionPolicy encryptionPolicy = this.encryptionPolicy;
+
+    if (encryptionPolicy == null) {
+      return this.mode;
+    }
+
+    final CeffMode mode = encryptionPolicy.mode(fileName, context);
+    if (mode == null) {
+      throw new IllegalArgumentException("no mode for " + fileName);
+    }
+    return mode;
+  }
+
+  /**
+   * Encrypt a file into a physical output, e.g. an entry of a compound file
+   *
+   * @param tmpOutput The physical output, closed with the returned output. Its name is the name of
+   *     the file.
+   * @param context The context the file is written with
+   * @param mode The mode of the file
+   * @return The encrypting output
+   */
+  CeffIndexOutput newOutput(IndexOutput tmpOutput, IOContext context, CeffMode mode)
+      throws IOException {
+    final CeffChunkLengthStrategy chunkLengthStrategy = this.chunkLengthStrategy;
+    final ExecutorSetting encryption = this.encryption;
+
+    return new CeffIndexOutput(
+        tmpOutput,
+        chunkLengthStrategy != null
+            ? chunkLengthStrategy.chunkLength(tmpOutput.getName(), context)
+            : this.chunkLength,
+        this.key,
+        mode,
+        this.formatVersion,
+        this.bufferPool,
+        this.openFiles,
+        encryption.executor,
+        encryption.chunks,
+        this.fileMetrics(tmpOutput.getName(), context));
+  }
+
+  /**
+   * Copies the cipher text of the file as it is (with {@link FileChannel#transferTo(long, long,
+   * java.nio.channels.WritableByteChannel)}) if the source is a CeffDirectory with the same key and
+   * the file was written with the mode and format version this directory would write it with. Only
+   * the header and the footer of the file are read (the footer is authenticated) before, the chunks
+   * are verified when the copy is read. Otherwise, e.g. to change the key, the file is decrypted
+   * and encrypted again.
+   *
+   * @throws IllegalArgumentException if a data file of {@link CeffCompoundFormat} was not written
+   *     with the key of this directory (e.g. copied from a CeffDirectory with another key or from a
+   *     plain directory)
+   */
+  @Override
+  public void copyFrom(Directory from, String src, String dest, IOContext context)
+      throws IOException {
+    this.ensureOpen();
+
+    if (CeffCompoundFormat.isDataFile(dest)) {
+      // the files in it stay encrypted with the key they were written with
+      CeffCompoundFormat.checkKey(from, src, this.key);
+    }
+
+    if (!(from instanceof CeffDirectory)
+        || !this.copiesCipherText((CeffDirectory) from, src, dest, context)) {
+      super.copyFrom(from, src, dest, context);
+      return;
+    }
+
+    final CeffDirectory source = (CeffDirectory) from;
+    try (FileChannel in =
+        FileChannel.open(source.getDirectory().resolve(src), StandardOpenOption.READ)) {
+      // the file is created like by createOutput, which fails if it exists and brings a name which
+      // is still pending deletion back to life
+      super.createOutput(dest, context).close();
+      boolean success = false;
+
+      try (FileChannel out =
+          FileChannel.open(this.getDirectory().resolve(dest), StandardOpenOption.WRITE)) {
+        final long size = in.size();
+        long position = 0;
+        while (position < size) {
+          position += in.transferTo(position, size - position, out);
+        }
+        success = true;
+      } finally {
+        if (!success) {
+          IOUtils.deleteFilesIgnoringExceptions(this, dest);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the cipher text of the file can be copied as it is, the footer of an encrypted
+   *     file is verified with the key of this directory
+   */
+  private boolean copiesCipherText(CeffDirectory source, String src, String dest, IOContext context)
+      throws IOException {
+    if (!MessageDigest.isEqual(source.key, this.key)) {
+      return false;
+    }
+
+    final boolean passThrough = this.isPassThrough(dest);
+    if (source.isPassThrough(src) != passThrough) {
+      return false;
+    }
+
+    if (passThrough) {
+      return true;
+    }
+
+    // only the header and the footer are read, the chunks are verified when the copy is read
+    try (IndexInput in = source.openPhysicalInput(src, IOContext.READONCE)) {
+      if (in.length() == 0) {
+        return true;
+      }
+
+      final int formatVersion = CeffUtils.formatVersion(in.readInt());
+      final CeffMode mode = CeffMode.getByModeByte(in.readByte());
+      if (mode != this.mode(dest, context) || formatVersion != this.formatVersion) {
+        return false;
+      }
+
+      CeffIndexInput.Footer.read(in, mode, this.key);
+      return true;
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return true if the file is written and read without encryption, the data files of {@link
+   *     CeffCompoundFormat} always are (the files in them are encrypted on their own)
+   */
+  boolean isPassThrough(String fileName) {
+    if (CeffCompoundFormat.isDataFile(fileName)) {
+      return true;
+    }
+
+    final CeffEncryptionPolicy encryptionPolicy = this.encryptionPolicy;
+    return encryptionPolicy != null && encryptionPolicy.isPassThrough(fileName);
+  }
+
+  /**
+   * @param fileName The name of the file
+   * @param context The context the file is opened with
+   * @return The file as it is stored by the wrapped directory (the cipher text of an encrypted
+   *     file)
+   */
+  IndexInput openPhysicalInput(String fileName, IOContext context) throws IOException {
+    this.ensureOpen();
+    this.ensureCanRead(fileName);
+    return this.delegate.openInput(fileName, context);
+  }
+
+  /**
+   * @return true if the input (e.g. returned by a directory which wraps this one) decrypts the
+   *     physical file of this directory with the name, so that its cipher text can be used as it is
+   */
+  boolean isPhysicalInput(IndexInput in, String fileName) {
+    return in instanceof CeffIndexInput && ((CeffIndexInput) in).readsPhysicalFile(this, fileName);
+  }
+
+  /**
+   * @return true if the directory is this directory or wraps it only with {@link FilterDirectory}
+   *     instances which open the files of this directory as they are (like the wrappers of the
+   *     IndexWriter), without opening a file
+   */
+  boolean opensPhysicalFiles(Directory dir) {
+    Directory unwrapped = dir;
+    while (unwrapped instanceof FilterDirectory) {
+      try {
+        if (unwrapped
+                .getClass()
+                .getMethod("openInput", String.class, IOContext.class)
+                .getDeclaringClass()
+            != FilterDirectory.class) {
+          return false;
+        }
+      } catch (final NoSuchMethodException e) {
+        // cannot happen, the method is public
+        throw new RuntimeException(e);
+      }
+      unwrapped = ((FilterDirectory) unwrapped).getDelegate();
+    }
+    return unwrapped == this;
+  }
+
+  private CeffMetricsListener.FileMetrics fileMetrics(String fileName, IOContext context) {
+    final CeffMetricsListener metricsListener = this.metricsListener;
+    return metricsListener != null ? metricsListener.file(fileName, context) : null;
+  }
+
   @Override
   public synchronized void close() throws IOException {
     this.delegate.close();
     super.close();
   }
 
+  /** @return The chunk length of files written without a chunk length strategy */
   public int getChunkLength() {
     return this.chunkLength;
   }
@@ -143,6 +417,7 @@ public final class CeffDirectory extends FSDirectory {
     return this.key.clone();
   }
 
+  /** @return The mode of files written without an encryption policy */
   public CeffMode getMode() {
     return this.mode;
   }
@@ -150,4 +425,267 @@ public final class CeffDirectory extends FSDirectory {
   public FSDirectory getDelegate() {
     return this.delegate;
   }
+
+  /**
+   * Set the format version of all files written afterwards. Files of all format versions can be
+   * read. Default is {@link CeffUtils#CURRENT_FORMAT_VERSION}.
+   *
+   * @param formatVersion {@link CeffUtils#FORMAT_VERSION_2}, {@link CeffUtils#FORMAT_VERSION_3}
+   *     (counter based nonces and per file subkeys, no per chunk random numbers) or {@link
+   *     CeffUtils#FORMAT_VERSION_1} (e.g. as long as older versions of this library must be able to
+   *     read the files)
+   * @throws IllegalArgumentException if the format version is not supported (also by the mode of
+   *     this directory)
+   */
+  public void setFormatVersion(int formatVersion) {
+    CeffUtils.magic(formatVersion);
+    if (formatVersion == CeffUtils.FORMAT_VERSION_3) {
+      CeffUtils.counterNonce(this.mode, 0);
+    }
+    this.formatVersion = formatVersion;
+  }
+
+  /** @return The format version of files written by this directory */
+  public int getFormatVersion() {
+    return this.formatVersion;
+  }
+
+  /**
+   * Set a cache for decrypted chunks which is shared by all inputs opened afterwards (including
+   * their clones and slices). A cache can also be shared between multiple directories so that there
+   * is only one memory budget. Default is no cache.
+   *
+   * @param chunkCache The cache or null to disable caching for inputs opened afterwards
+   */
+  public void setChunkCache(CeffChunkCache chunkCache) {
+    this.chunkCache = chunkCache;
+  }
+
+  /** @return The cache for decrypted chunks or null if there is none */
+  public CeffChunkCache getChunkCache() {
+    return this.chunkCache;
+  }
+
+  /**
+   * Set a pool for the chunk buffers of all inputs and outputs opened afterwards. The buffers are
+   * given back to the pool when the input or output is closed. A pool can also be shared between
+   * multiple directories so that there is only one memory budget. Default is no pool.
+   *
+   * @param bufferPool The pool or null to allocate the buffers of inputs and outputs opened
+   *     afterwards individually
+   */
+  public void setBufferPool(CeffBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  /** @return The buffer pool or null if there is none */
+  public CeffBufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  /**
+   * Set a listener which receives the encryption and decryption metrics of all inputs and outputs
+   * opened afterwards, e.g. a {@link CeffMetrics}. Default is no listener, then no metrics are
+   * measured at all.
+   *
+   * @param metricsListener The listener or null to disable the metrics for inputs and outputs
+   *     opened afterwards
+   */
+  public void setMetricsListener(CeffMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /** @return The metrics listener or null if there is none */
+  public CeffMetricsListener getMetricsListener() {
+    return this.metricsListener;
+  }
+
+  /**
+   * Set a policy which decides per file name and context with which mode files created afterwards
+   * are encrypted or if they are passed through without encryption, e.g. {@link
+   * CeffEncryptionPolicy#byExtension(CeffMode, java.util.Map, java.util.Set)}. Encrypted files are
+   * always read with the mode stored in their header. Default is to encrypt all files with the mode
+   * of this directory.
+   *
+   * <p>Pass-through files are neither encrypted nor authenticated, so only files without sensitive
+   * content should be passed through. The pass-through files of an existing index must not change,
+   * they are also detected by the policy when the files are opened.
+   *
+   * @param encryptionPolicy The policy or null to encrypt all files with the mode of this directory
+   */
+  public void setEncryptionPolicy(CeffEncryptionPolicy encryptionPolicy) {
+    this.encryptionPolicy = encryptionPolicy;
+  }
+
+  /** @return The encryption policy or null if there is none */
+  public CeffEncryptionPolicy getEncryptionPolicy() {
+    return this.encryptionPolicy;
+  }
+
+  /**
+   * Set a strategy which decides per file name and context with which chunk length files created
+   * afterwards are written, e.g. {@link CeffChunkLengthStrategy#byExtension(int, java.util.Map)}.
+   * Files are always read with the chunk length stored in their footer. Default is the chunk length
+   * of this directory for all files.
+   *
+   * @param chunkLengthStrategy The strategy or null to write all files with the chunk length of
+   *     this directory
+   */
+  public void setChunkLengthStrategy(CeffChunkLengthStrategy chunkLengthStrategy) {
+    this.chunkLengthStrategy = chunkLengthStrategy;
+  }
+
+  /** @return The chunk length strategy or null if there is none */
+  public CeffChunkLengthStrategy getChunkLengthStrategy() {
+    return this.chunkLengthStrategy;
+  }
+
+  /**
+   * Read the files opened afterwards with positional reads of a {@link
+   * java.nio.channels.FileChannel} instead of an input of the wrapped directory. The cipher text of
+   * a chunk is then read with one system call straight into the read buffer of the input, clones
+   * and slices read without a clone of the wrapped input and without a shared file position. This
+   * suits many concurrent query threads when the index should not be memory mapped. Default is to
+   * read with the wrapped directory.
+   *
+   * <p>Like with the NIOFSDirectory an interrupt of a reading thread closes the file for all
+   * readers.
+   *
+   * @param positionalReads true to read with positional reads
+   */
+  public void setPositionalReads(boolean positionalReads) {
+    this.positionalReads = positionalReads;
+  }
+
+  /** @return true if files are read with positional reads */
+  public boolean isPositionalReads() {
+    return this.positionalReads;
+  }
+
+  /**
+   * Let positional reads (the {@link org.apache.lucene.store.RandomAccessInput} methods which doc
+   * values use for point lookups) of the files opened afterwards decrypt only the key stream blocks
+   * they need instead of the whole chunk, once the chunk was completely decrypted and verified by
+   * the input, one of its clones or slices. Only for modes which support it, see {@link
+   * CeffMode#getKeyStreamBlockLength()}, and not for inputs which put their chunks into the chunk
+   * cache. Default is to always decrypt and verify whole chunks.
+   *
+   * <p>This trades integrity for speed: the bytes of a partial decryption are read from the file
+   * again and are not authenticated, a modification of the file after the chunk was verified is not
+   * detected by them (the next complete decryption of the chunk still detects it). The
+   * confidentiality is the same.
+   *
+   * @param partialDecryption true to decrypt only parts of verified chunks for positional reads
+   */
+  public void setPartialDecryption(boolean partialDecryption) {
+    this.partialDecryption = partialDecryption;
+  }
+
+  /** @return true if positional reads of verified chunks decrypt only the needed part */
+  public boolean isPartialDecryption() {
+    return this.partialDecryption;
+  }
+
+  /**
+   * Encrypt the chunks of all outputs created afterwards in parallel. Full chunks are handed to the
+   * executor while the writing thread fills the next chunk, the cipher text is still written in
+   * chunk order and the file is the same as with sequential encryption. Every in-flight chunk needs
+   * its own plain text and cipher text buffer. Default is to encrypt on the writing thread.
+   *
+   * <p>The executor is not shut down by this directory. If it rejects a chunk the chunk is
+   * encrypted on the writing thread.
+   *
+   * @param executor The executor or null to encrypt on the writing thread
+   * @param maxInFlightChunks The max number of chunks per output which are encrypted at the same
+   *     time, the writing thread blocks until the oldest chunk is written if there are more
+   * @throws IllegalArgumentException if an executor is given and maxInFlightChunks is &lt; 1
+   */
+  public void setEncryptionExecutor(Executor executor, int maxInFlightChunks) {
+    if (executor != null && maxInFlightChunks < 1) {
+      throw new IllegalArgumentException("maxInFlightChunks must be >= 1");
+    }
+
+    this.encryption = new ExecutorSetting(executor, maxInFlightChunks);
+  }
+
+  /** @return The executor for parallel encryption or null if chunks are encrypted sequentially */
+  public Executor getEncryptionExecutor() {
+    return this.encryption.executor;
+  }
+
+  /** @return The max number of in-flight chunks per output for parallel encryption */
+  public int getMaxInFlightChunks() {
+    return this.encryption.chunks;
+  }
+
+  /**
+   * Read and decrypt chunks ahead of sequential reads for all inputs opened afterwards. Inputs (and
+   * their clones and slices) are considered sequential after they read some chunks in file order,
+   * inputs opened with a merge or read once context already after one chunk. The cipher text of the
+   * next chunks is then read with one read and decrypted by the executor while the reader consumes
+   * the previous ones. Every reading input needs two batches of plain text and cipher text buffers.
+   * Default is no readahead.
+   *
+   * <p>The executor is not shut down by this directory. If it rejects a batch the batch is
+   * decrypted on the reading thread.
+   *
+   * @param executor The executor or null to disable the readahead
+   * @param chunks The number of chunks which are read and decrypted ahead at once
+   * @throws IllegalArgumentException if an executor is given and chunks is &lt; 1
+   */
+  public void setReadahead(Executor executor, int chunks) {
+    if (executor != null && chunks < 1) {
+      throw new IllegalArgumentException("chunks must be >= 1");
+    }
+
+    this.readahead = new ExecutorSetting(executor, chunks);
+  }
+
+  /** @return The executor for the readahead or null if there is no readahead */
+  public Executor getReadaheadExecutor() {
+    return this.readahead.executor;
+  }
+
+  /** @return The number of chunks which are read and decrypted ahead at once */
+  public int getReadaheadChunks() {
+    return this.readahead.chunks;
+  }
+
+  /**
+   * @return The bytes used by the open inputs and outputs of this directory and their buffers
+   *     (pooled buffers are also included in {@link CeffBufferPool#ramBytesUsed()})
+   */
+  @Override
+  public long ramBytesUsed() {
+    long ramBytesUsed = 0;
+    for (final Accountable openFile : this.openFiles) {
+      ramBytesUsed += openFile.ramBytesUsed();
+    }
+    return ramBytesUsed;
+  }
+
+  @Override
+  public Collection<Accountable> getChildResources() {
+    final List<Accountable> resources = new ArrayList<>();
+    for (final Accountable openFile : this.openFiles) {
+      resources.add(Accountables.namedAccountable(openFile.toString(), openFile.ramBytesUsed()));
+    }
+    return Collections.unmodifiableList(resources);
+  }
+
+  /**
+   * An executor together with its chunk count, so that inputs and outputs never see the executor of
+   * one setting with the count of another
+   */
+  private static final class ExecutorSetting {
+    private static final ExecutorSetting NONE = new ExecutorSetting(null, 0);
+
+    private final Executor executor;
+    private final int chunks;
+
+    private ExecutorSetting(Executor executor, int chunks) {
+      this.executor = executor;
+      this.chunks = chunks;
+    }
+  }
 }
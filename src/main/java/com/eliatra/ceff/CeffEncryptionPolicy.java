@@ -0,0 +1,56 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Decides per file how a {@link CeffDirectory} writes it, see {@link
+ * CeffDirectory#setEncryptionPolicy(CeffEncryptionPolicy)}. Files are read with the mode stored in
+ * their header, so the mode of a file can be changed at any time. Pass-through files are written
+ * and read without any encryption.
+ */
+public interface CeffEncryptionPolicy {
+
+  /**
+   * @param fileName The name of the file
+   * @param context The context the file is created with
+   * @return The mode to encrypt the file with, must not be null
+   */
+  CeffMode mode(String fileName, IOContext context);
+
+  /**
+   * Files which are passed through are neither encrypted nor authenticated. The decision is also
+   * made when a file is opened, so it must only depend on the file name and must not change for an
+   * existing index. Default is to pass through no file.
+   *
+   * @param fileName The name of the file
+   * @return true if the file is written and read without encryption
+   */
+  default boolean isPassThrough(String fileName) {
+    return false;
+  }
+
+  /**
+   * A policy which decides by file extension (e.g. "doc", "tim" or "fdt", files without an
+   * extension like "segments_1" have the extension "")
+   *
+   * @param defaultMode The mode of all files with other extensions
+   * @param modes The modes by extension, may be empty
+   * @param passThroughExtensions The extensions of the files which are not encrypted, may be empty
+   * @return The policy
+   * @throws IllegalArgumentException if a mode is not supported, an extension contains a dot or is
+   *     configured with a mode and as pass-through
+   */
+  static CeffEncryptionPolicy byExtension(
+      CeffMode defaultMode, Map<String, CeffMode> modes, Set<String> passThroughExtensions) {
+    return new CeffExtensionPolicy(defaultMode, modes, passThroughExtensions);
+  }
+}
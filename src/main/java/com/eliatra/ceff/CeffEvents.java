@@ -0,0 +1,68 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+/**
+ * Emits the Java Flight Recorder events of the inputs and outputs, see {@link CeffJfrEvents}. On
+ * runtimes without JFR this is a no-op and the JFR classes are never loaded.
+ */
+class CeffEvents {
+
+  /** The JFR events if the runtime supports JFR, otherwise a no-op */
+  static final CeffEvents INSTANCE = load();
+
+  enum Type {
+    /** Open of an input including the verification of the footer (and signature scan) */
+    OPEN,
+    /** Creation of a slice */
+    SLICE,
+    /** Verification and decryption of a chunk */
+    DECRYPT,
+    /** Encryption of a chunk */
+    ENCRYPT,
+    /** Close of an output including the last chunk and the footer */
+    CLOSE
+  }
+
+  /** A begun event */
+  interface Event {
+
+    /**
+     * End and commit the event
+     *
+     * @param fileName The name of the file
+     * @param chunk The chunk number (the last chunk for open and close, the first chunk for slices)
+     * @param bytes The plain text length of the chunk, file or slice
+     * @param mode The mode of the file
+     */
+    void commit(String fileName, long chunk, long bytes, CeffMode mode);
+  }
+
+  CeffEvents() {}
+
+  /**
+   * @param type The event type
+   * @return The begun event or null if events of the type are not recorded (which is the default)
+   */
+  Event begin(Type type) {
+    return null;
+  }
+
+  private static CeffEvents load() {
+    try {
+      // the JFR classes are only referenced by this class
+      return (CeffEvents)
+          Class.forName(CeffEvents.class.getName().replace("CeffEvents", "CeffJfrEvents"))
+              .getDeclaredConstructor()
+              .newInstance();
+    } catch (final ReflectiveOperationException | LinkageError | RuntimeException e) {
+      // e.g. java 8 before 8u262 or a runtime without the jdk.jfr module
+      return new CeffEvents();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/** See {@link CeffEncryptionPolicy#byExtension(CeffMode, Map, Set)} */
+final class CeffExtensionPolicy implements CeffEncryptionPolicy {
+
+  private final CeffMode defaultMode;
+  private final Map<String, CeffMode> modes;
+  private final Set<String> passThroughExtensions;
+
+  CeffExtensionPolicy(
+      CeffMode defaultMode, Map<String, CeffMode> modes, Set<String> passThroughExtensions) {
+    this.defaultMode = validate(defaultMode);
+    this.modes = Collections.unmodifiableMap(new HashMap<>(modes));
+    this.passThroughExtensions = Collections.unmodifiableSet(new HashSet<>(passThroughExtensions));
+
+    for (final Map.Entry<String, CeffMode> entry : this.modes.entrySet()) {
+      validate(entry.getKey());
+      validate(entry.getValue());
+    }
+
+    for (final String extension : this.passThroughExtensions) {
+      validate(extension);
+
+      if (this.modes.containsKey(extension)) {
+        throw new IllegalArgumentException(
+            "extension '" + extension + "' is configured with a mode and as pass-through");
+      }
+    }
+  }
+
+  private static void validate(String extension) {
+    if (extension == null || extension.indexOf('.') >= 0) {
+      throw new IllegalArgumentException("invalid extension '" + extension + "'");
+    }
+  }
+
+  private static CeffMode validate(CeffMode mode) {
+    if (!Objects.requireNonNull(mode, "mode").isSupported()) {
+      throw new IllegalArgumentException(
+          "mode " + mode.getClass().getSimpleName() + " not supported on this platform");
+    }
+    return mode;
+  }
+
+  private static String extension(String fileName) {
+    return Objects.toString(IndexFileNames.getExtension(fileName), "");
+  }
+
+  @Override
+  public CeffMode mode(String fileName, IOContext context) {
+    return this.modes.getOrDefault(extension(fileName), this.defaultMode);
+  }
+
+  @Override
+  public boolean isPassThrough(String fileName) {
+    return !this.passThroughExtensions.isEmpty()
+        && this.passThroughExtensions.contains(extension(fileName));
+  }
+
+  @Override
+  public String toString() {
+    return "CeffExtensionPolicy [defaultMode="
+        + this.defaultMode.getClass().getSimpleName()
+        + ", modes="
+        + this.modes.keySet()
+        + ", passThroughExtensions="
+        + this.passThroughExtensions
+        + "]";
+  }
+}
@@ -13,27 +13,78 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * A {@link IndexInput} implementation which wraps an underlying IndexInput and decrypts all read
  * requests.
+ *
+ * <p>If a readahead executor is given and the input is read sequentially (or was opened with a
+ * merge or read once context) the cipher text of the next chunks is read with one read and
+ * decrypted by the executor ahead of the reader.
+ *
+ * <p>Inputs and slices are also {@link RandomAccessInput}s: positional reads use the current chunk
+ * if the position is within it and only decrypt (or fetch from the cache) another chunk on a miss.
+ * They never change the file pointer.
  */
-public final class CeffIndexInput extends IndexInput {
+public final class CeffIndexInput extends IndexInput implements RandomAccessInput, Accountable {
 
+  private static final long BASE_RAM_BYTES_USED =
+      RamUsageEstimator.shallowSizeOfInstance(CeffIndexInput.class);
   private static final IndexInput EMPTY_INDEX_INPUT = new EmptyIndexInput();
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+  /** number of chunks loaded in file order after which the access is considered sequential */
+  private static final int SEQUENTIAL_LOADS = 2;
+  /** the same for inputs with a merge or read once context, which are likely read in order */
+  private static final int SEQUENTIAL_LOADS_HINTED = 1;
 
+  /**
+   * for clones and slices this is a clone of the physical input (created on the first decrypt),
+   * chunks are read positional
+   */
   private IndexInput delegate;
   /** same value also for slices */
-  private IndexInput physicalDelegate;
+  private final IndexInput physicalDelegate;
+  /** same value also for slices */
+  private final String fileName;
+  /**
+   * the directory which opened this input for its physical file, also for clones. Null for slices
+   * and for files in compound files.
+   */
+  private CeffDirectory directory;
 
+  /** same value also for slices, the key of the chunks (the derived subkey for format version 3) */
   private final byte[] key;
+  /**
+   * the current chunk, either the buffer of {@link #currentChunkBuffer} or a view on a chunk which
+   * is not modified anymore (cached or shared with the input this one was cloned from)
+   */
   private ByteBuffer buffer;
-  private byte[] singleByteBuffer = new byte[1];
-  private byte[] readBuffer;
-  private ByteBuffer aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
-  private long absoluteStartChunk = -1L;
+  /** the own buffer {@link #buffer} belongs to, null if it is a cached or shared chunk */
+  private ChunkBuffer currentChunkBuffer;
+  /**
+   * the own buffer to decrypt chunks into which are not put into the cache, allocated on the first
+   * decrypt and replaced on the next decrypt once it is shared with a clone or slice
+   */
+  private ChunkBuffer chunkBuffer;
+
+  /** allocated on the first decrypt, always on-heap */
+  private ByteBuffer readBuffer;
+  /** allocated on the first decrypt */
+  private ByteBuffer aadBuffer;
+
   private final long length;
   /** same value also for slices */
   private final long plainFileLength;
@@ -46,11 +97,50 @@ public final class CeffIndexInput extends IndexInput {
   /** same value also for slices */
   private final int chunkLength;
 
-  private final boolean slice;
   private long currentAbsoluteChunkNum = -1L;
   private boolean isClone = false;
+  private boolean isClosed = false;
   /** same value also for slices */
   private final CeffMode mode;
+  /** same value also for slices */
+  private final IOContext context;
+  /** same value also for slices, null if there is no cache */
+  private final CeffChunkCache cache;
+  /** same value also for slices */
+  private final CeffChunkCache.FileKey fileKey;
+  /** same value also for slices */
+  private final int formatVersion;
+  /** same value also for slices, the file id of format version 2 */
+  private final long fileIdMsb;
+  /** same value also for slices, the file id of format version 2 */
+  private final long fileIdLsb;
+  /** same value also for slices, null if there is no pool. Only used by the physical input. */
+  private final CeffBufferPool pool;
+  /** the open inputs and outputs of the directory, null if not opened by a directory */
+  private final Set<Accountable> openFiles;
+  /** same value also for slices, null if there is no readahead */
+  private final Executor readaheadExecutor;
+  /** same value also for slices */
+  private final int readaheadChunks;
+  /** created on the first sequential read, never shared with clones or slices */
+  private Readahead readahead;
+  /** number of chunks loaded in file order */
+  private int sequentialLoads;
+  /** same value also for slices, null if there are no metrics */
+  private final CeffMetricsListener.FileMetrics metrics;
+  /** the highest chunk loaded so far (also by the input this one was cloned from) */
+  private long maxLoadedChunkNum = -1L;
+  /**
+   * one bit per chunk which was completely decrypted and verified, shared by the clones and slices,
+   * null without partial decryption
+   */
+  private final AtomicLongArray verifiedChunks;
+  /** the buffer the index returned by {@link #randomAccess(long, int)} refers to */
+  private ByteBuffer randomAccessBuffer;
+  /** nonce and cipher text of a partial decryption */
+  private byte[] partCipherText;
+  /** plain text of a partial decryption, starts at a key stream block */
+  private ByteBuffer partPlainText;
 
   /**
    * Sole constructor
@@ -61,142 +151,241 @@ public final class CeffIndexInput extends IndexInput {
    * @throws IllegalArgumentException when chunkSize or key is invalid
    */
   public CeffIndexInput(IndexInput delegate, byte[] key) throws IOException {
-    this(delegate, key, delegate, 0, 0, 0, 0, 0, null, false);
+    this(
+        delegate.toString(),
+        delegate,
+        key,
+        IOContext.DEFAULT,
+        null,
+        null,
+        null,
+        null,
+        0,
+        null,
+        false);
   }
 
-  private CeffIndexInput(
-      final IndexInput delegate,
-      final byte[] key,
-      final IndexInput physicalDelegate0,
-      final long sliceOffset0,
-      final long sliceLength0,
-      final int chunkLength0,
-      final long absoluteChunkCount0,
-      final long plainFileLength0,
-      final CeffMode mode0,
-      final boolean slice0)
+  /**
+   * Physical input
+   *
+   * @param fileName The name of the file
+   * @param delegate The wrapped input
+   * @param key encryption/decryption key
+   * @param context The context the file was opened with
+   * @param cache The shared chunk cache or null
+   * @param pool The buffer pool or null
+   * @param openFiles The open inputs and outputs of the directory (this input adds itself and
+   *     removes itself on close) or null
+   * @param readaheadExecutor The executor which decrypts chunks ahead of sequential reads or null
+   * @param readaheadChunks The number of chunks which are read and decrypted ahead at once
+   * @param metrics The metrics of the file or null
+   * @param partialDecryption true to decrypt only the needed key stream blocks for positional reads
+   *     of chunks which were verified before
+   */
+  CeffIndexInput(
+      String fileName,
+      IndexInput delegate,
+      byte[] key,
+      IOContext context,
+      CeffChunkCache cache,
+      CeffBufferPool pool,
+      Set<Accountable> openFiles,
+      Executor readaheadExecutor,
+      int readaheadChunks,
+      CeffMetricsListener.FileMetrics metrics,
+      boolean partialDecryption)
       throws IOException {
     super("Ceff " + delegate.toString());
+    final long start = metrics != null ? System.nanoTime() : 0L;
+    final CeffEvents.Event event = CeffEvents.INSTANCE.begin(CeffEvents.Type.OPEN);
+    this.fileName = fileName;
     this.delegate = delegate;
-    this.key = key;
-    this.physicalDelegate = physicalDelegate0;
-    this.sliceOffset = sliceOffset0;
-
-    if (slice0) {
-      // slice (or slice of slice)
-      this.isClone = true;
-      assert delegate != this.physicalDelegate;
-      this.length = sliceLength0;
-      this.chunkLength = chunkLength0;
-      this.slice = true;
-      this.plainFileLength = plainFileLength0;
-      this.absoluteChunkCount = absoluteChunkCount0;
-      this.mode = mode0;
+    this.physicalDelegate = delegate;
+    this.sliceOffset = 0;
+    this.context = context;
+    this.cache = cache;
+    this.pool = pool;
+    this.openFiles = openFiles;
+    this.readaheadExecutor = readaheadChunks > 0 ? readaheadExecutor : null;
+    this.readaheadChunks = readaheadChunks;
+    this.metrics = metrics;
 
-    } else {
-      // physical
-      this.isClone = false;
-      assert delegate == this.physicalDelegate;
-      assert sliceLength0 == 0;
-      assert sliceOffset0 == 0;
-      assert this.physicalDelegate.length() > 0;
+    assert this.delegate.length() > 0;
 
-      final int magic = this.physicalDelegate.readInt();
+    this.aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
 
-      CeffUtils.validateMagicHeaderBytes(magic);
+    final int magic = this.delegate.readInt();
 
-      final byte ceffmode = this.physicalDelegate.readByte();
-      try {
-        this.mode = CeffMode.getByModeByte(ceffmode);
-        this.mode.validateKey(this.key);
-        this.slice = false;
-
-        // seek to footer
-        this.physicalDelegate.seek(
-            this.physicalDelegate.length() - CeffUtils.footerLength(this.mode));
-
-        final byte[] nonceBytes = new byte[this.mode.getNonceLength()];
-        this.physicalDelegate.readBytes(nonceBytes, 0, nonceBytes.length);
-
-        this.chunkLength = this.castSafe(this.physicalDelegate.readLong());
-        CeffUtils.validateChunkLength(this.chunkLength);
-        final long lastChunk = this.physicalDelegate.readLong();
-        this.plainFileLength = this.physicalDelegate.readLong();
-        this.length = this.plainFileLength;
-        this.absoluteChunkCount = lastChunk + 1;
-
-        this.aadBuffer.clear();
-        this.aadBuffer.putLong(this.chunkLength);
-        this.aadBuffer.putLong(lastChunk);
-        this.aadBuffer.putLong(this.plainFileLength);
-        this.aadBuffer.flip();
-
-        final byte[] sigCipher = new byte[CeffUtils.SIGNATURE_LENGTH + this.mode.getTagLength()];
-        this.physicalDelegate.readBytes(
-            sigCipher, 0, CeffUtils.SIGNATURE_LENGTH + this.mode.getTagLength());
-        // decrypt signature and validate aad
-        final byte[] plainTextSignature =
-            this.mode.decrypt(ByteBuffer.wrap(sigCipher), this.aadBuffer, this.key, nonceBytes);
-
-        // scan file and validate signature
-        MessageDigest sha512md;
-        try {
-          sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
-        } catch (final NoSuchAlgorithmException e) {
-          // cannot happen
-          throw new RuntimeException(e);
-        }
+    this.formatVersion = CeffUtils.formatVersion(magic);
 
-        for (long k = 0; k < this.absoluteChunkCount; k++) {
-          // seek to the start of the chunk
-          this.physicalDelegate.seek(
-              CeffUtils.HEADER_LENGTH
-                  + this.mode.getNonceLength()
-                  + (k
-                      * (CeffUtils.AAD_LENGTH
-                          + this.chunkLength
-                          + this.mode.getTagLength()
-                          + this.mode.getNonceLength())));
-          final long chunk = this.physicalDelegate.readLong();
-          final long chunkIdMsb = this.physicalDelegate.readLong();
-          final long chunkIdLsb = this.physicalDelegate.readLong();
-
-          this.aadBuffer.clear();
-          this.aadBuffer.putLong(chunk);
-          this.aadBuffer.putLong(chunkIdMsb);
-          this.aadBuffer.putLong(chunkIdLsb);
-          this.aadBuffer.flip();
-          sha512md.update(this.aadBuffer);
-
-          if (chunk != k) {
-            throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
-          }
+    final byte ceffmode = this.delegate.readByte();
+    try {
+      this.mode = CeffMode.getByModeByte(ceffmode);
+      final Footer footer = Footer.read(this.delegate, this.mode, key);
+      this.chunkLength = footer.chunkLength;
+      this.plainFileLength = footer.plainFileLength;
+      this.length = this.plainFileLength;
+      this.absoluteChunkCount = footer.chunkCount;
+      final byte[] plainTextSignature = footer.signature;
+
+      if (this.formatVersion != CeffUtils.FORMAT_VERSION_1) {
+        // every chunk is verified against the file id when it is read
+        final ByteBuffer fileId = ByteBuffer.wrap(plainTextSignature);
+        this.fileIdMsb = fileId.getLong();
+        this.fileIdLsb = fileId.getLong();
+        this.fileKey = new CeffChunkCache.FileKey(fileName, this.fileIdMsb);
+
+        if (this.formatVersion == CeffUtils.FORMAT_VERSION_3) {
+          final byte[] salt = new byte[CeffUtils.SALT_LENGTH];
+          fileId.get(salt);
+          this.key = CeffUtils.deriveFileKey(key, salt, this.mode);
+        } else {
+          this.key = key;
         }
+      } else {
+        this.key = key;
+        this.verifySignature(plainTextSignature);
+        this.fileIdMsb = 0;
+        this.fileIdLsb = 0;
+
+        // the signature covers the random chunk ids so it also identifies this written file
+        this.fileKey =
+            new CeffChunkCache.FileKey(fileName, ByteBuffer.wrap(plainTextSignature).getLong());
+      }
 
-        if (!Arrays.equals(plainTextSignature, sha512md.digest())) {
-          throw new CeffCryptoException("verification failed: signature mismatch", this.mode);
-        }
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+
+    assert this.absoluteChunkCount
+        == CeffUtils.calculateNumberOfChunks(this.delegate.length(), this.chunkLength, this.mode);
+    assert this.plainFileLength
+        == CeffUtils.calculatePlainFileLength(this.delegate.length(), this.chunkLength, this.mode);
+
+    this.verifiedChunks =
+        partialDecryption && this.mode.getKeyStreamBlockLength() > 0
+            ? new AtomicLongArray(Math.toIntExact((this.absoluteChunkCount + 63) >>> 6))
+            : null;
+    this.buffer = EMPTY_BUFFER;
+
+    try {
+      this.seek(0); // decrypt first chunk
+    } catch (final IOException e) {
+      this.releaseBuffers();
+      throw e;
+    }
+
+    if (this.metrics != null) {
+      this.metrics.opened(System.nanoTime() - start);
+    }
+
+    if (event != null) {
+      event.commit(fileName, this.absoluteChunkCount - 1, this.plainFileLength, this.mode);
+    }
+
+    if (this.openFiles != null) {
+      this.openFiles.add(this);
+    }
+  }
+
+  /** Called by the directory which opened this input for the physical file */
+  void setDirectory(CeffDirectory directory) {
+    this.directory = directory;
+  }
 
-      } catch (final CeffCryptoException e) {
-        throw new IOException(e);
-      } catch (final IOException e) {
-        throw e;
+  /** @return true if this input decrypts the whole physical file of the directory */
+  boolean readsPhysicalFile(CeffDirectory directory, String fileName) {
+    return this.directory == directory && this.fileName.equals(fileName);
+  }
+
+  /**
+   * @return A clone of the physical input of this input at the start of the file, e.g. to copy the
+   *     cipher text as it is
+   */
+  IndexInput clonePhysicalInput() throws IOException {
+    final IndexInput physical = this.physicalDelegate.clone();
+    physical.seek(0);
+    return physical;
+  }
+
+  /** Format version 1: scan all chunk aads of the file and verify the signature */
+  private void verifySignature(byte[] plainTextSignature) throws IOException, CeffCryptoException {
+    MessageDigest sha512md;
+    try {
+      sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+    } catch (final NoSuchAlgorithmException e) {
+      // cannot happen
+      throw new RuntimeException(e);
+    }
+
+    for (long k = 0; k < this.absoluteChunkCount; k++) {
+      // seek to the start of the chunk
+      this.delegate.seek(this.chunkOffset(k) + this.mode.getNonceLength());
+      final long chunk = this.delegate.readLong();
+      final long chunkIdMsb = this.delegate.readLong();
+      final long chunkIdLsb = this.delegate.readLong();
+
+      this.aadBuffer.clear();
+      this.aadBuffer.putLong(chunk);
+      this.aadBuffer.putLong(chunkIdMsb);
+      this.aadBuffer.putLong(chunkIdLsb);
+      this.aadBuffer.flip();
+      sha512md.update(this.aadBuffer);
+
+      if (chunk != k) {
+        throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
       }
+    }
 
-      assert this.absoluteChunkCount
-          == CeffUtils.calculateNumberOfChunks(
-              this.physicalDelegate.length(), this.chunkLength, this.mode);
-      assert this.plainFileLength
-          == CeffUtils.calculatePlainFileLength(
-              this.physicalDelegate.length(), this.chunkLength, this.mode);
+    if (!Arrays.equals(plainTextSignature, sha512md.digest())) {
+      throw new CeffCryptoException("verification failed: signature mismatch", this.mode);
+    }
+  }
 
-      // seek to the start of the first chunk
-      this.physicalDelegate.seek(CeffUtils.HEADER_LENGTH);
+  /** Slice (or slice of slice) */
+  private CeffIndexInput(
+      CeffIndexInput parent, String sliceDescription, long sliceOffset, long sliceLength)
+      throws IOException {
+    super(parent.getFullSliceDescription(sliceDescription));
+    this.physicalDelegate = parent.physicalDelegate;
+    this.fileName = parent.fileName;
+    this.isClone = true;
+    this.key = parent.key;
+    this.sliceOffset = sliceOffset;
+    this.length = sliceLength;
+    this.chunkLength = parent.chunkLength;
+    this.plainFileLength = parent.plainFileLength;
+    this.absoluteChunkCount = parent.absoluteChunkCount;
+    this.mode = parent.mode;
+    this.context = parent.context;
+    this.cache = parent.cache;
+    this.fileKey = parent.fileKey;
+    this.formatVersion = parent.formatVersion;
+    this.fileIdMsb = parent.fileIdMsb;
+    this.fileIdLsb = parent.fileIdLsb;
+    this.pool = parent.pool;
+    this.openFiles = null;
+    this.readaheadExecutor = parent.readaheadExecutor;
+    this.readaheadChunks = parent.readaheadChunks;
+    this.metrics = parent.metrics;
+    this.maxLoadedChunkNum = parent.maxLoadedChunkNum;
+    this.verifiedChunks = parent.verifiedChunks;
+
+    if (this.metrics != null) {
+      this.metrics.sliced();
     }
 
-    this.buffer = ByteBuffer.allocate(this.chunkLength);
-    this.readBuffer = new byte[this.chunkLength + CeffUtils.cryptoLength(this.mode)];
-    this.decryptChunk(); // decrypt first chunk
+    final long absoluteStartChunk = sliceOffset / this.chunkLength;
+
+    if (absoluteStartChunk == parent.currentAbsoluteChunkNum) {
+      // start with the current chunk of the parent, no need to decrypt it again
+      this.buffer = parent.shareBuffer();
+      this.currentAbsoluteChunkNum = absoluteStartChunk;
+      this.buffer.position(this.castSafe(sliceOffset - (absoluteStartChunk * this.chunkLength)));
+    } else {
+      // the first chunk is decrypted with the first read
+      this.buffer = EMPTY_BUFFER;
+    }
   }
 
   @Override
@@ -204,26 +393,41 @@ public final class CeffIndexInput extends IndexInput {
     final CeffIndexInput clone = (CeffIndexInput) super.clone();
     clone.isClone = true;
 
-    // we need to clone the delegate and deep clone the buffers
-    // if this is done correctly the merge thread will throw exceptions
-
-    if (this.delegate == this.physicalDelegate) {
-      clone.delegate = this.delegate.clone();
-      clone.physicalDelegate = clone.delegate;
-    } else {
-      clone.delegate = this.delegate.clone();
-      clone.physicalDelegate = this.physicalDelegate.clone();
+    // clones are created very often and many of them read only a few bytes, so a clone shares
+    // the current chunk (copy-on-write, see ChunkBuffer) and the delegate clone and the buffers
+    // are only created when the clone decrypts its first chunk. Clones are created by several
+    // threads at once, so this input must not be modified.
+    // (if mutable state is shared the merge thread will throw exceptions)
+    clone.delegate = null;
+    clone.buffer = this.shareBuffer();
+    clone.currentChunkBuffer = null;
+    clone.chunkBuffer = null;
+    clone.readBuffer = null;
+    clone.aadBuffer = null;
+    clone.readahead = null;
+    clone.randomAccessBuffer = null;
+    clone.partCipherText = null;
+    clone.partPlainText = null;
+
+    if (this.metrics != null) {
+      this.metrics.cloned();
     }
 
-    clone.buffer = CeffUtils.deepClone(this.buffer);
-    clone.aadBuffer = CeffUtils.deepClone(this.aadBuffer);
-    clone.singleByteBuffer =
-        ArrayUtil.copyOfSubArray(this.singleByteBuffer, 0, this.singleByteBuffer.length);
-    clone.readBuffer = ArrayUtil.copyOfSubArray(this.readBuffer, 0, this.readBuffer.length);
-
     return clone;
   }
 
+  /**
+   * @return A view on the current chunk with the same position. The chunk will not be modified by
+   *     this input anymore.
+   */
+  private ByteBuffer shareBuffer() {
+    final ChunkBuffer currentChunkBuffer = this.currentChunkBuffer;
+    if (currentChunkBuffer != null) {
+      currentChunkBuffer.shared = true;
+    }
+    return this.buffer.duplicate();
+  }
+
   @Override
   public void seek(long pos) throws IOException {
     // pos is plaintext oriented
@@ -235,64 +439,22 @@ public final class CeffIndexInput extends IndexInput {
       throw new EOFException("read past EOF");
     }
 
-    if (this.slice) {
-      // also slice-of-slice needs to work
-
-      // in which absolute chunk does the seeked position reside?
-      final long absoluteChunkNum = (pos + this.sliceOffset) / this.chunkLength;
+    // also slice-of-slice needs to work, the slice offset is absolute
+    final long absolutePos = this.sliceOffset + pos;
 
-      assert this.absoluteStartChunk >= 0;
+    // in which absolute chunk does the seeked position reside?
+    // (a file which ends at a chunk boundary has no empty trailing chunk)
+    final long absoluteChunkNum =
+        Math.min(absolutePos / this.chunkLength, this.absoluteChunkCount - 1);
 
-      // because the constructor calls decryptChunk() and sets absoluteStartChunk we know
-      // were we are and can calculate a relative chunkNum (relative to the beginning of this slice)
-      final long relativeChunkNum = absoluteChunkNum - this.absoluteStartChunk;
-
-      // decrypt the chunk only if not already decrypted (crucial for performance)
-      if (absoluteChunkNum != this.currentAbsoluteChunkNum) {
-        // because the delegate here is a slice we need to operate with relative chunks
-        this.delegate.seek(
-            ((relativeChunkNum) * (this.chunkLength + CeffUtils.cryptoLength(this.mode))));
-        this.decryptChunk();
-      }
-
-      this.filePointer = pos;
-
-      // the chunk where the slice starts (this will be adjusted downward)
-      final long offsetChunk = this.sliceOffset / this.chunkLength;
-
-      // the offset from the beginning of the chunk
-      final long relativeOffset = this.sliceOffset - (offsetChunk * this.chunkLength);
-
-      // the new buffer offset is the relative offset + the relative pos
-      final long bufferOffset = (relativeOffset + pos) - (relativeChunkNum * this.chunkLength);
-
-      assert absoluteChunkNum >= this.absoluteStartChunk;
-
-      // buffer starts always at the beginning of the chunk
-      this.buffer.position(this.castSafe(bufferOffset));
-
-    } else {
-      // in which chunk does the seeked position reside?
-      final long absoluteChunkNum = pos / this.chunkLength;
-      assert absoluteChunkNum < this.absoluteChunkCount;
-
-      // decrypt the chunk only if not already decrypted (crucial for performance)
-      if (absoluteChunkNum != this.currentAbsoluteChunkNum) {
-        // seek physically to the start of the chunk
-        this.delegate.seek(
-            CeffUtils.HEADER_LENGTH
-                + ((absoluteChunkNum) * (this.chunkLength + CeffUtils.cryptoLength(this.mode))));
-        this.decryptChunk();
-      } else {
-        this.filePointer = absoluteChunkNum * this.chunkLength;
-      }
-
-      final int bufferOffset = this.castSafe(((pos) - (absoluteChunkNum * (this.chunkLength))));
-      // adjust buffer position because loadChunk()
-      // positions the buffer at the beginning
-      this.buffer.position(bufferOffset);
-      this.filePointer += bufferOffset;
+    // decrypt the chunk only if not already decrypted (crucial for performance)
+    if (absoluteChunkNum != this.currentAbsoluteChunkNum) {
+      this.loadChunk(absoluteChunkNum);
     }
+
+    // buffer starts always at the beginning of the chunk
+    this.buffer.position(this.castSafe(absolutePos - (absoluteChunkNum * this.chunkLength)));
+    this.filePointer = pos;
   }
 
   @Override
@@ -316,188 +478,654 @@ public final class CeffIndexInput extends IndexInput {
       return EMPTY_INDEX_INPUT;
     }
 
+    final CeffEvents.Event event = CeffEvents.INSTANCE.begin(CeffEvents.Type.SLICE);
     // also slice-of-slice needs to work so we need to keep track of the offsets
-    final long effectiveOffset = this.sliceOffset + offset;
-
-    // startChunk and endChunk are
-    final long startChunk = effectiveOffset / this.chunkLength;
-    final long endChunk = (length + effectiveOffset) / this.chunkLength;
-    final long chunkSpan = endChunk - startChunk;
-
-    // locate the offset in the encrypted file. This must be the beginning of a chunk.
-    // we need to add the header length and for every chunk the crypto overhead
-    final long newOffset =
-        CeffUtils.HEADER_LENGTH
-            + ((startChunk) * (this.chunkLength + CeffUtils.cryptoLength(this.mode)));
-    long newLength;
-    if (endChunk + 1L == this.absoluteChunkCount) {
-      // last physical chunk
-      // we need to calculate the length of the last chunk
-      final long lastChunkLength = this.plainFileLength - ((endChunk * this.chunkLength));
-      newLength = lastChunkLength + CeffUtils.cryptoLength(this.mode);
-      assert lastChunkLength <= this.chunkLength;
-      // add the length of a full sized chunks before the last chunk
-      newLength += (chunkSpan) * (this.chunkLength + CeffUtils.cryptoLength(this.mode));
-    } else {
-      // if the end chunk is not the last chunk we extend the length to match the end of the end
-      // chunk
-      newLength = (chunkSpan + 1L) * (this.chunkLength + CeffUtils.cryptoLength(this.mode));
-    }
+    final CeffIndexInput slice =
+        new CeffIndexInput(this, sliceDescription, this.sliceOffset + offset, length);
 
-    final String sliceDescription0 =
-        this.slice ? "[slice-of-slice " + sliceDescription + "]" : sliceDescription;
+    if (event != null) {
+      event.commit(
+          this.fileName, (this.sliceOffset + offset) / this.chunkLength, length, this.mode);
+    }
 
-    return new CeffIndexInput(
-        this.physicalDelegate.slice(sliceDescription0, newOffset, newLength),
-        this.key,
-        this.physicalDelegate,
-        effectiveOffset,
-        length,
-        this.chunkLength,
-        this.absoluteChunkCount,
-        this.plainFileLength,
-        this.mode,
-        true);
+    return slice;
   }
 
   @Override
   public void readBytes(byte[] b, int offset, int length) throws IOException {
     // offset and length are plaintext oriented
-    if (length == 0) {
-      return;
+    if (length > this.length - this.filePointer) {
+      throw new EOFException(
+          "read past EOF: " + (this.filePointer + length) + " > " + this.length());
     }
 
     int read = 0;
 
     while (read < length) {
 
-      final int maxReadlen = Math.min(this.buffer.capacity(), (length - read));
-
       if (!this.buffer.hasRemaining()) {
-        this.decryptChunk();
-        assert this.buffer.position() == 0;
-        this.buffer.get(b, offset + read, maxReadlen);
-        if (!this.slice) {
-          this.filePointer += maxReadlen;
-        }
-      } else if (this.buffer.remaining() >= maxReadlen) {
-        this.buffer.get(b, offset + read, maxReadlen);
-        if (!this.slice) {
-          this.filePointer += maxReadlen;
+        // end of the current chunk, continue with the next one
+        this.seek(this.filePointer);
+      }
+
+      final int maxReadlen = Math.min(this.buffer.remaining(), (length - read));
+      this.buffer.get(b, offset + read, maxReadlen);
+      this.filePointer += maxReadlen;
+      read += maxReadlen;
+    }
+  }
+
+  /**
+   * Make the chunk the current chunk, either from the cache or by decrypting it. The buffer is
+   * positioned at the beginning of the chunk.
+   */
+  private void loadChunk(long absoluteChunkNum) throws IOException {
+    assert absoluteChunkNum >= 0 && absoluteChunkNum < this.absoluteChunkCount;
+
+    // the first chunk decrypted on open does not count, the input may only be opened (e.g. to
+    // check its header)
+    this.sequentialLoads =
+        this.currentAbsoluteChunkNum >= 0 && absoluteChunkNum == this.currentAbsoluteChunkNum + 1
+            ? this.sequentialLoads + 1
+            : 0;
+
+    final ByteBuffer cached =
+        this.cache != null ? this.cache.get(this.fileKey, absoluteChunkNum, this.context) : null;
+
+    if (cached != null) {
+      this.buffer = cached;
+      this.currentChunkBuffer = null;
+    } else {
+      if (this.metrics != null && absoluteChunkNum <= this.maxLoadedChunkNum) {
+        // a seek back to a chunk which was already passed
+        this.metrics.chunkRedecrypted();
+      }
+
+      final boolean admitted = this.cache != null && CeffChunkCache.admits(this.context);
+      final ChunkBuffer readAhead = this.readahead(absoluteChunkNum);
+
+      if (readAhead != null) {
+        if (admitted) {
+          // the readahead buffers are reused, the cache needs its own copy
+          final ByteBuffer plainText = this.cache.allocate(readAhead.buffer.remaining());
+          plainText.put(readAhead.buffer.duplicate()).flip();
+          this.cache.put(this.fileKey, absoluteChunkNum, this.context, plainText);
         }
+        this.buffer = readAhead.buffer;
+        this.currentChunkBuffer = readAhead;
+      } else if (admitted) {
+        final ByteBuffer plainText =
+            this.cache.allocate(this.chunkPlainTextLength(absoluteChunkNum));
+        this.decryptChunk(absoluteChunkNum, plainText);
+        this.cache.put(this.fileKey, absoluteChunkNum, this.context, plainText);
+        this.buffer = plainText.duplicate();
+        this.currentChunkBuffer = null;
       } else {
-        final int remaining = this.buffer.remaining();
-        this.buffer.get(b, offset + read, remaining);
-        assert !this.buffer.hasRemaining();
-        this.decryptChunk();
-        assert this.buffer.position() == 0;
-        this.buffer.get(b, offset + remaining + read, maxReadlen - remaining);
-        if (!this.slice) {
-          this.filePointer += (maxReadlen - remaining);
-        }
+        final ChunkBuffer chunkBuffer = this.ownChunkBuffer();
+        this.buffer = this.decryptChunk(absoluteChunkNum, chunkBuffer.buffer);
+        this.currentChunkBuffer = chunkBuffer;
       }
+    }
 
-      read += maxReadlen;
+    this.currentAbsoluteChunkNum = absoluteChunkNum;
+    this.maxLoadedChunkNum = Math.max(this.maxLoadedChunkNum, absoluteChunkNum);
+  }
+
+  /**
+   * @return The chunk if it was already decrypted ahead or null. Schedules the next chunks if the
+   *     input is read sequentially.
+   */
+  private ChunkBuffer readahead(long absoluteChunkNum) throws IOException {
+    if (this.readaheadExecutor == null) {
+      return null;
     }
 
-    if (this.slice) {
-      this.filePointer += length;
+    // detect sequential access, the context is only a hint: merges and read once inputs also seek
+    // (e.g. to the footer) and must not read ahead after a jump
+    final boolean sequential =
+        this.sequentialLoads
+            >= (this.context.context == IOContext.Context.MERGE || this.context.readOnce
+                ? SEQUENTIAL_LOADS_HINTED
+                : SEQUENTIAL_LOADS);
+
+    if (this.readahead == null) {
+      if (!sequential) {
+        return null;
+      }
+      this.readahead = new Readahead();
     }
 
-    if (this.filePointer > this.length) {
-      throw new EOFException("read past EOF: " + this.filePointer + " > " + this.length());
+    return this.readahead.take(absoluteChunkNum, sequential);
+  }
+
+  private ChunkBuffer ownChunkBuffer() {
+    if (this.chunkBuffer == null || this.chunkBuffer.shared) {
+      if (this.chunkBuffer != null && this.pool != null) {
+        // the clones and slices keep the shared buffer, it is not recycled
+        this.pool.detach(this.chunkBuffer.buffer);
+      }
+
+      this.chunkBuffer =
+          new ChunkBuffer(
+              this.usePool()
+                  ? this.pool.acquire(this.chunkLength)
+                  : ByteBuffer.allocate(this.chunkLength));
     }
+    return this.chunkBuffer;
   }
 
-  private void decryptChunk() throws IOException {
+  /**
+   * Read, verify and decrypt a chunk into the plain text buffer
+   *
+   * @return the flipped plain text buffer
+   */
+  private ByteBuffer decryptChunk(long absoluteChunkNum, ByteBuffer plainText) throws IOException {
+
+    this.ensureDelegate();
 
-    this.buffer.clear();
-    final long remaining = this.delegate.length() - this.delegate.getFilePointer();
+    if (this.readBuffer == null) {
+      final int readBufferLength = this.chunkLength + CeffUtils.cryptoLength(this.mode);
+      this.readBuffer =
+          this.usePool()
+              ? this.pool.acquireHeap(readBufferLength)
+              : ByteBuffer.allocate(readBufferLength);
+      this.aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+    }
 
-    assert remaining != 0 : "remaining == 0";
+    final byte[] cipherText = this.readBuffer.array();
+    this.readCipherText(
+        this.delegate,
+        this.chunkOffset(absoluteChunkNum),
+        cipherText,
+        0,
+        this.chunkCipherTextLength(absoluteChunkNum));
 
-    int read = this.readBuffer.length;
+    return this.decrypt(absoluteChunkNum, cipherText, 0, this.aadBuffer, plainText);
+  }
 
-    if (this.slice) {
-      read = Math.min(this.readBuffer.length, this.castSafe(remaining));
+  private void ensureDelegate() {
+    if (this.delegate == null && !(this.physicalDelegate instanceof CeffChannelInput)) {
+      // first decrypt of a clone or slice
+      this.delegate = this.physicalDelegate.clone();
+    }
+  }
+
+  /**
+   * Read cipher text of the physical file, with one positional read if the file is read with a
+   * {@link CeffChannelInput} (which needs no clone of the delegate)
+   *
+   * @param delegate The own clone of the delegate, not used for positional reads
+   * @param pos The position in the physical file
+   */
+  private void readCipherText(
+      IndexInput delegate, long pos, byte[] cipherText, int offset, int length) throws IOException {
+    if (this.physicalDelegate instanceof CeffChannelInput) {
+      ((CeffChannelInput) this.physicalDelegate).read(pos, cipherText, offset, length);
     } else {
+      delegate.seek(pos);
+      delegate.readBytes(cipherText, offset, length);
+    }
+  }
+
+  /**
+   * Verify and decrypt a chunk into the plain text buffer. Also called by the readahead executor,
+   * so only the given buffers must be modified.
+   *
+   * @param cipherText The array which contains the chunk (nonce, aad and cipher text)
+   * @param offset The offset of the chunk in the array
+   * @return the flipped plain text buffer
+   */
+  private ByteBuffer decrypt(
+      long absoluteChunkNum, byte[] cipherText, int offset, ByteBuffer aad, ByteBuffer plainText)
+      throws IOException {
+    final int read = this.chunkCipherTextLength(absoluteChunkNum);
 
-      if ((remaining - (CeffUtils.footerLength(this.mode) + CeffUtils.cryptoLength(this.mode)))
-          < this.chunkLength) {
-        // last chunk, typically less then chunklength in length
-        read = this.castSafe(remaining) - CeffUtils.footerLength(this.mode);
+    aad.clear();
+    aad.put(cipherText, offset + this.mode.getNonceLength(), CeffUtils.AAD_LENGTH);
+    aad.flip();
+
+    try {
+      if (aad.getLong(0) != absoluteChunkNum) {
+        throw new CeffCryptoException("verification failed: chunk number mismatch", this.mode);
+      }
+
+      if (this.formatVersion != CeffUtils.FORMAT_VERSION_1
+          && (aad.getLong(Long.BYTES) != this.fileIdMsb
+              || aad.getLong(2 * Long.BYTES) != this.fileIdLsb)) {
+        // the chunk belongs to another file
+        throw new CeffCryptoException("verification failed: file id mismatch", this.mode);
+      }
+
+      // decrypt directly into the chunk buffer
+      plainText.clear();
+      final CeffEvents.Event event = CeffEvents.INSTANCE.begin(CeffEvents.Type.DECRYPT);
+      final long start = this.metrics != null ? System.nanoTime() : 0L;
+      // a plain heap buffer on purpose: the JCE providers decrypt read-only or direct buffers
+      // through temporary arrays and buffer the whole chunk a second time (GCM), a heap buffer
+      // with an accessible array is decrypted in place without any further copy
+      this.mode.decrypt(
+          ByteBuffer.wrap(
+              cipherText,
+              offset + this.mode.getNonceLength() + CeffUtils.AAD_LENGTH,
+              read - (this.mode.getNonceLength() + CeffUtils.AAD_LENGTH)),
+          aad,
+          this.key,
+          ArrayUtil.copyOfSubArray(cipherText, offset, offset + this.mode.getNonceLength()),
+          plainText);
+      plainText.flip();
+      this.markVerified(absoluteChunkNum);
+
+      if (this.metrics != null) {
+        this.metrics.chunkDecrypted(plainText.remaining(), System.nanoTime() - start);
+      }
+
+      if (event != null) {
+        event.commit(this.fileName, absoluteChunkNum, plainText.remaining(), this.mode);
       }
+
+      return plainText;
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
     }
+  }
 
-    if (read <= 0) {
-      throw new EOFException("read past EOF");
+  /** Remember that the chunk was completely decrypted and verified */
+  private void markVerified(long absoluteChunkNum) {
+    if (this.verifiedChunks != null) {
+      final int index = (int) (absoluteChunkNum >>> 6);
+      final long bit = 1L << absoluteChunkNum;
+      long bits;
+      do {
+        bits = this.verifiedChunks.get(index);
+      } while ((bits & bit) == 0 && !this.verifiedChunks.compareAndSet(index, bits, bits | bit));
     }
+  }
 
-    this.delegate.readBytes(this.readBuffer, 0, read);
+  /**
+   * @return true if a positional read of the chunk can decrypt only the needed key stream blocks:
+   *     the chunk was verified before and would not be put into the chunk cache
+   */
+  private boolean decryptsPart(long absoluteChunkNum) {
+    return this.verifiedChunks != null
+        && (this.cache == null || !CeffChunkCache.admits(this.context))
+        && (this.verifiedChunks.get((int) (absoluteChunkNum >>> 6)) & (1L << absoluteChunkNum))
+            != 0;
+  }
 
-    this.aadBuffer.clear();
-    this.aadBuffer.put(this.readBuffer, this.mode.getNonceLength(), CeffUtils.AAD_LENGTH);
-    this.aadBuffer.flip();
+  /**
+   * Decrypt the key stream blocks of a chunk which contain the bytes of a positional read, without
+   * verifying the chunk again
+   *
+   * @param index The index of the first byte in the chunk
+   * @param bytes The number of bytes (at most 8)
+   * @return The flipped plain text buffer which starts with the key stream block of the index
+   */
+  private ByteBuffer decryptPart(long absoluteChunkNum, int index, int bytes) throws IOException {
+    final int blockLength = this.mode.getKeyStreamBlockLength();
+    final int nonceLength = this.mode.getNonceLength();
+
+    if (this.partCipherText == null) {
+      final int maxLength = ((Long.BYTES + blockLength - 1) / blockLength + 1) * blockLength;
+      this.partCipherText = new byte[nonceLength + maxLength];
+      this.partPlainText = ByteBuffer.allocate(maxLength);
+    }
 
-    final long chunk = this.aadBuffer.getLong();
-    this.currentAbsoluteChunkNum = chunk;
-    this.aadBuffer.rewind();
+    final int firstBlock = index / blockLength;
+    final int start = firstBlock * blockLength;
+    final int end =
+        Math.min(
+            ((index + bytes + blockLength - 1) / blockLength) * blockLength,
+            this.chunkPlainTextLength(absoluteChunkNum));
+    final long chunkOffset = this.chunkOffset(absoluteChunkNum);
+
+    this.ensureDelegate();
+    final byte[] nonce;
+    if (this.formatVersion == CeffUtils.FORMAT_VERSION_3) {
+      nonce = CeffUtils.counterNonce(this.mode, absoluteChunkNum);
+    } else {
+      this.readCipherText(this.delegate, chunkOffset, this.partCipherText, 0, nonceLength);
+      nonce = ArrayUtil.copyOfSubArray(this.partCipherText, 0, nonceLength);
+    }
+    this.readCipherText(
+        this.delegate,
+        chunkOffset + nonceLength + CeffUtils.AAD_LENGTH + start,
+        this.partCipherText,
+        nonceLength,
+        end - start);
 
-    byte[] plainText = null;
     try {
-      plainText =
-          this.mode.decrypt(
-              ByteBuffer.wrap(
-                      this.readBuffer,
-                      (this.mode.getNonceLength() + CeffUtils.AAD_LENGTH),
-                      read - (this.mode.getNonceLength() + CeffUtils.AAD_LENGTH))
-                  .asReadOnlyBuffer(),
-              this.aadBuffer,
-              this.key,
-              ArrayUtil.copyOfSubArray(this.readBuffer, 0, this.mode.getNonceLength()));
+      this.partPlainText.clear();
+      final long startNanos = this.metrics != null ? System.nanoTime() : 0L;
+      this.mode.decryptPart(
+          ByteBuffer.wrap(this.partCipherText, nonceLength, end - start),
+          this.key,
+          nonce,
+          firstBlock,
+          this.partPlainText);
+      this.partPlainText.flip();
+
+      if (this.metrics != null) {
+        this.metrics.chunkPartiallyDecrypted(end - start, System.nanoTime() - startNanos);
+      }
+
+      return this.partPlainText;
+    } catch (final CeffCryptoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** @return The mode the file was written with */
+  CeffMode getMode() {
+    return this.mode;
+  }
+
+  /** @return The format version the file was written with */
+  int getFormatVersion() {
+    return this.formatVersion;
+  }
+
+  /** @return the length of a chunk (nonce, aad and cipher text) in the encrypted file */
+  private int chunkCipherTextLength(long absoluteChunkNum) {
+    return this.chunkPlainTextLength(absoluteChunkNum) + CeffUtils.cryptoLength(this.mode);
+  }
+
+  /** @return the physical offset of a chunk (its nonce) in the encrypted file */
+  private long chunkOffset(long absoluteChunkNum) {
+    return CeffUtils.HEADER_LENGTH
+        + (absoluteChunkNum * (this.chunkLength + CeffUtils.cryptoLength(this.mode)));
+  }
+
+  /** @return the plain text length of a chunk, only the last chunk can be shorter */
+  private int chunkPlainTextLength(long absoluteChunkNum) {
+    if (absoluteChunkNum == this.absoluteChunkCount - 1) {
+      return this.castSafe(this.plainFileLength - (absoluteChunkNum * this.chunkLength));
+    }
+    return this.chunkLength;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (this.filePointer >= this.length) {
+      throw new EOFException("read past EOF: " + (this.filePointer + 1) + " > " + this.length());
+    }
+
+    if (!this.buffer.hasRemaining()) {
+      // end of the current chunk, continue with the next one
+      this.seek(this.filePointer);
+    }
+
+    this.filePointer++;
+    return this.buffer.get();
+  }
+
+  // the primitive reads decode directly from the current chunk if the value is completely
+  // contained in it and fall back to reading byte by byte at chunk boundaries (and EOF)
+
+  @Override
+  public short readShort() throws IOException {
+    if (this.available(Short.BYTES)) {
+      this.filePointer += Short.BYTES;
+      return this.buffer.getShort();
+    }
+    return super.readShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    if (this.available(Integer.BYTES)) {
+      this.filePointer += Integer.BYTES;
+      return this.buffer.getInt();
+    }
+    return super.readInt();
+  }
 
-      if (this.absoluteStartChunk < 0L) {
-        this.absoluteStartChunk = chunk;
+  @Override
+  public long readLong() throws IOException {
+    if (this.available(Long.BYTES)) {
+      this.filePointer += Long.BYTES;
+      return this.buffer.getLong();
+    }
+    return super.readLong();
+  }
+
+  @Override
+  public void readLELongs(long[] dst, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int count =
+          (int)
+              Math.min(
+                  length, Math.min(this.buffer.remaining(), this.length - this.filePointer) >> 3);
+
+      if (count == 0) {
+        // the next long spans two chunks or the file ends
+        dst[offset++] = Long.reverseBytes(super.readLong());
+        length--;
+        continue;
       }
 
-      if (!this.slice) {
-        // physical mode
-        // if chunk == 0 then this means fp=0 which should happen at the beginning of a physical
-        // input
-        this.filePointer = chunk * this.chunkLength;
+      for (int i = 0; i < count; i++) {
+        dst[offset + i] = Long.reverseBytes(this.buffer.getLong());
       }
 
-      this.buffer.put(plainText);
-      this.buffer.flip();
+      this.filePointer += (long) count * Long.BYTES;
+      offset += count;
+      length -= count;
+    }
+  }
 
-      if (this.slice) {
+  @Override
+  public int readVInt() throws IOException {
+    if (!this.available(5)) {
+      return super.readVInt();
+    }
 
-        if (chunk > this.absoluteStartChunk) {
-          this.buffer.position(0);
+    final int position = this.buffer.position();
+    byte b = this.buffer.get();
+    int i = b & 0x7F;
+
+    if (b < 0) {
+      b = this.buffer.get();
+      i |= (b & 0x7F) << 7;
+      if (b < 0) {
+        b = this.buffer.get();
+        i |= (b & 0x7F) << 14;
+        if (b < 0) {
+          b = this.buffer.get();
+          i |= (b & 0x7F) << 21;
+          if (b < 0) {
+            b = this.buffer.get();
+            // Warning: the next ands use 0x0F / 0xF0 - beware copy/paste errors:
+            i |= (b & 0x0F) << 28;
+            if ((b & 0xF0) != 0) {
+              throw new IOException("Invalid vInt detected (too many bits)");
+            }
+          }
         }
+      }
+    }
 
-        if (chunk == this.absoluteStartChunk) {
-          this.buffer.position(
-              this.castSafe((this.sliceOffset - this.absoluteStartChunk * this.chunkLength)));
-        }
+    this.filePointer += this.buffer.position() - position;
+    return i;
+  }
+
+  @Override
+  public long readVLong() throws IOException {
+    if (!this.available(9)) {
+      return super.readVLong();
+    }
+
+    final int position = this.buffer.position();
+    long i = 0;
+
+    for (int shift = 0; shift <= 56; shift += 7) {
+      final byte b = this.buffer.get();
+      i |= (b & 0x7FL) << shift;
+
+      if (b >= 0) {
+        this.filePointer += this.buffer.position() - position;
+        return i;
       }
-    } catch (final CeffCryptoException e) {
-      throw new IOException(e);
     }
+
+    throw new IOException("Invalid vLong detected (negative values disallowed)");
   }
 
   @Override
-  public byte readByte() throws IOException {
-    this.readBytes(this.singleByteBuffer, 0, 1);
-    return this.singleByteBuffer[0];
+  public byte readByte(long pos) throws IOException {
+    // the chunk must be loaded before the buffer field is read
+    final int index = this.randomAccess(pos, Byte.BYTES);
+    return this.randomAccessBuffer.get(index);
+  }
+
+  @Override
+  public short readShort(long pos) throws IOException {
+    final int index = this.randomAccess(pos, Short.BYTES);
+    if (index >= 0) {
+      return this.randomAccessBuffer.getShort(index);
+    }
+    // spans two chunks
+    return (short) (((this.readByte(pos) & 0xFF) << 8) | (this.readByte(pos + 1) & 0xFF));
+  }
+
+  @Override
+  public int readInt(long pos) throws IOException {
+    final int index = this.randomAccess(pos, Integer.BYTES);
+    if (index >= 0) {
+      return this.randomAccessBuffer.getInt(index);
+    }
+    // spans two chunks
+    return ((this.readShort(pos) & 0xFFFF) << 16) | (this.readShort(pos + 2) & 0xFFFF);
+  }
+
+  @Override
+  public long readLong(long pos) throws IOException {
+    final int index = this.randomAccess(pos, Long.BYTES);
+    if (index >= 0) {
+      return this.randomAccessBuffer.getLong(index);
+    }
+    // spans two chunks
+    return (((long) this.readInt(pos)) << 32) | (this.readInt(pos + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Make the chunk of a positional read the current chunk, or only decrypt the needed part of the
+   * chunk if it was verified before
+   *
+   * @param pos The position relative to the start of this input (or slice)
+   * @param bytes The number of bytes to read
+   * @return The index of the position in {@link #randomAccessBuffer} or -1 if the bytes span two
+   *     chunks
+   */
+  private int randomAccess(long pos, int bytes) throws IOException {
+    if (pos < 0 || pos > this.length - bytes) {
+      throw new EOFException(
+          "read past EOF: pos=" + pos + ", bytes=" + bytes + ", length=" + this.length);
+    }
+
+    final long absolutePos = this.sliceOffset + pos;
+    final long absoluteChunkNum = absolutePos / this.chunkLength;
+    final int index = (int) (absolutePos - (absoluteChunkNum * this.chunkLength));
+
+    if (index > this.chunkLength - bytes) {
+      return -1;
+    }
+
+    if (absoluteChunkNum != this.currentAbsoluteChunkNum) {
+      if (this.decryptsPart(absoluteChunkNum)) {
+        // the current chunk stays as it is
+        this.randomAccessBuffer = this.decryptPart(absoluteChunkNum, index, bytes);
+        return index % this.mode.getKeyStreamBlockLength();
+      }
+
+      this.loadChunk(absoluteChunkNum);
+      // the file pointer may be in another chunk, the next stream read seeks to it
+      this.buffer.position(this.buffer.limit());
+    }
+
+    this.randomAccessBuffer = this.buffer;
+    return index;
+  }
+
+  /**
+   * @return true if the next bytes are in the current chunk and before the end of the file (or
+   *     slice)
+   */
+  private boolean available(int bytes) {
+    return this.buffer.remaining() >= bytes && this.length - this.filePointer >= bytes;
   }
 
   @Override
   public void close() throws IOException {
     if (!this.isClone) {
-      assert this.delegate == this.physicalDelegate;
-      this.delegate.close();
+      try {
+        if (this.readahead != null) {
+          // the readahead must not read from the closed delegate
+          this.readahead.awaitQuietly();
+        }
+        this.delegate.close();
+      } finally {
+        this.isClosed = true;
+        this.releaseBuffers();
+
+        if (this.openFiles != null) {
+          this.openFiles.remove(this);
+        }
+      }
+    }
+  }
+
+  /** clones and slices are never closed so they can not give pooled buffers back */
+  private boolean usePool() {
+    return this.pool != null && !this.isClone && !this.isClosed;
+  }
+
+  /** Give the own buffers back to the pool, the next read will fail with the closed delegate */
+  private void releaseBuffers() {
+    if (this.pool != null) {
+      if (this.chunkBuffer != null) {
+        if (this.chunkBuffer.shared) {
+          // still read by clones or slices
+          this.pool.detach(this.chunkBuffer.buffer);
+        } else {
+          this.pool.release(this.chunkBuffer.buffer);
+        }
+      }
+      this.pool.release(this.readBuffer);
+    }
+
+    this.chunkBuffer = null;
+    this.readBuffer = null;
+    this.buffer = EMPTY_BUFFER;
+    this.currentChunkBuffer = null;
+    this.currentAbsoluteChunkNum = -1;
+  }
+
+  /** @return The bytes used by this input and its own buffers (not by shared or cached chunks) */
+  @Override
+  public long ramBytesUsed() {
+    long ramBytesUsed = BASE_RAM_BYTES_USED;
+
+    final ChunkBuffer chunkBuffer = this.chunkBuffer;
+    if (chunkBuffer != null) {
+      ramBytesUsed += chunkBuffer.buffer.capacity();
+    }
+
+    final ByteBuffer readBuffer = this.readBuffer;
+    if (readBuffer != null) {
+      ramBytesUsed += readBuffer.capacity();
+    }
+
+    if (this.verifiedChunks != null && !this.isClone) {
+      ramBytesUsed += (long) this.verifiedChunks.length() * Long.BYTES;
+    }
+
+    if (this.readahead != null) {
+      // two batches of plain text and cipher text
+      ramBytesUsed +=
+          2L * this.readaheadChunks * ((2L * this.chunkLength) + CeffUtils.cryptoLength(this.mode));
     }
+
+    return ramBytesUsed;
   }
 
   @Override
@@ -519,6 +1147,252 @@ public final class CeffIndexInput extends IndexInput {
     return (int) num;
   }
 
+  /** The authenticated footer of a physical file */
+  static final class Footer {
+    final int chunkLength;
+    final long chunkCount;
+    final long plainFileLength;
+    /** the file id (and salt) or the signature of the chunk ids of format version 1 */
+    final byte[] signature;
+
+    private Footer(int chunkLength, long chunkCount, long plainFileLength, byte[] signature) {
+      this.chunkLength = chunkLength;
+      this.chunkCount = chunkCount;
+      this.plainFileLength = plainFileLength;
+      this.signature = signature;
+    }
+
+    /**
+     * Read and authenticate the footer, without reading any chunk
+     *
+     * @param physical The physical file, its position is changed
+     * @param mode The mode of the file (from its header)
+     * @param key The key of the directory
+     * @return The footer
+     * @throws CeffCryptoException if the footer was tampered with, was written with another key or
+     *     the file does not have exactly the length the footer describes
+     */
+    static Footer read(IndexInput physical, CeffMode mode, byte[] key)
+        throws IOException, CeffCryptoException {
+      mode.validateKey(key);
+
+      // seek to footer
+      physical.seek(physical.length() - CeffUtils.footerLength(mode));
+
+      final byte[] nonceBytes = new byte[mode.getNonceLength()];
+      physical.readBytes(nonceBytes, 0, nonceBytes.length);
+
+      final long chunkLength = physical.readLong();
+      if (chunkLength > Integer.MAX_VALUE || chunkLength < Integer.MIN_VALUE) {
+        throw new IllegalArgumentException("Cannot cast " + chunkLength + " to int");
+      }
+      CeffUtils.validateChunkLength((int) chunkLength);
+      final long lastChunk = physical.readLong();
+      final long plainFileLength = physical.readLong();
+      final long chunkCount = lastChunk + 1;
+
+      final ByteBuffer aad = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+      aad.putLong(chunkLength);
+      aad.putLong(lastChunk);
+      aad.putLong(plainFileLength);
+      aad.flip();
+
+      final byte[] sigCipher = new byte[CeffUtils.SIGNATURE_LENGTH + mode.getTagLength()];
+      physical.readBytes(sigCipher, 0, sigCipher.length);
+      // decrypt signature and validate aad
+      final byte[] signature = mode.decrypt(ByteBuffer.wrap(sigCipher), aad, key, nonceBytes);
+
+      // the footer is authenticated, the file must have exactly the length it describes
+      if (chunkCount != Math.max(1, (plainFileLength + chunkLength - 1) / chunkLength)
+          || physical.length()
+              != CeffUtils.HEADER_LENGTH
+                  + (chunkCount * CeffUtils.cryptoLength(mode))
+                  + plainFileLength
+                  + CeffUtils.footerLength(mode)) {
+        throw new CeffCryptoException("verification failed: file length mismatch", mode);
+      }
+
+      return new Footer((int) chunkLength, chunkCount, plainFileLength, signature);
+    }
+  }
+
+  /**
+   * Double buffered readahead: while the reader consumes the chunks of one batch the next batch is
+   * read and decrypted by the executor. Only one batch is in-flight at any time, it reads with its
+   * own clone of the physical input.
+   */
+  private final class Readahead {
+    private final IndexInput delegate =
+        CeffIndexInput.this.physicalDelegate instanceof CeffChannelInput
+            ? null
+            : CeffIndexInput.this.physicalDelegate.clone();
+    private final ByteBuffer aad = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+    /** the batch the reader consumes, always done */
+    private Batch consumed = new Batch();
+    /** the batch after the consumed one, may be in-flight */
+    private Batch ahead = new Batch();
+
+    /** @return The decrypted chunk or null if it was not read ahead */
+    private ChunkBuffer take(long absoluteChunkNum, boolean sequential) throws IOException {
+      if (this.ahead.contains(absoluteChunkNum)) {
+        this.ahead.await();
+        final Batch spare = this.consumed;
+        this.consumed = this.ahead;
+        this.ahead = spare;
+        this.ahead.count = 0;
+      }
+
+      if (this.consumed.contains(absoluteChunkNum)) {
+        final long next = this.consumed.first + this.consumed.count;
+
+        if (sequential && this.ahead.count == 0 && next < CeffIndexInput.this.absoluteChunkCount) {
+          this.schedule(next);
+        }
+
+        return this.consumed.plainText(absoluteChunkNum);
+      }
+
+      if (sequential && absoluteChunkNum + 1 < CeffIndexInput.this.absoluteChunkCount) {
+        // (re)start behind the chunk which the reader decrypts itself
+        this.awaitQuietly();
+        this.consumed.count = 0;
+        this.schedule(absoluteChunkNum + 1);
+      }
+
+      return null;
+    }
+
+    private void schedule(long first) {
+      final Batch batch = this.ahead;
+      batch.first = first;
+      batch.count =
+          (int)
+              Math.min(
+                  CeffIndexInput.this.readaheadChunks,
+                  CeffIndexInput.this.absoluteChunkCount - first);
+      batch.task =
+          new FutureTask<>(
+              () -> {
+                this.fill(batch);
+                return null;
+              });
+
+      try {
+        CeffIndexInput.this.readaheadExecutor.execute(batch.task);
+      } catch (final RejectedExecutionException e) {
+        // e.g. the executor was shut down
+        batch.task.run();
+      }
+    }
+
+    /** Read the cipher text of all chunks of the batch with one read and decrypt them */
+    private void fill(Batch batch) throws IOException {
+      final int chunkCipherTextLength =
+          CeffIndexInput.this.chunkLength + CeffUtils.cryptoLength(CeffIndexInput.this.mode);
+      final long last = batch.first + batch.count - 1;
+      final int read =
+          ((batch.count - 1) * chunkCipherTextLength)
+              + CeffIndexInput.this.chunkCipherTextLength(last);
+
+      if (batch.cipherText == null) {
+        batch.cipherText = new byte[CeffIndexInput.this.readaheadChunks * chunkCipherTextLength];
+        batch.plainTexts = new ChunkBuffer[CeffIndexInput.this.readaheadChunks];
+      }
+
+      CeffIndexInput.this.readCipherText(
+          this.delegate, CeffIndexInput.this.chunkOffset(batch.first), batch.cipherText, 0, read);
+
+      for (int i = 0; i < batch.count; i++) {
+        if (batch.plainTexts[i] == null || batch.plainTexts[i].shared) {
+          // a shared chunk is kept by the clones and slices
+          batch.plainTexts[i] =
+              new ChunkBuffer(ByteBuffer.allocate(CeffIndexInput.this.chunkLength));
+        }
+
+        CeffIndexInput.this.decrypt(
+            batch.first + i,
+            batch.cipherText,
+            i * chunkCipherTextLength,
+            this.aad,
+            batch.plainTexts[i].buffer);
+      }
+    }
+
+    /** Wait until the in-flight batch is done, failures are ignored */
+    private void awaitQuietly() {
+      try {
+        this.ahead.await();
+      } catch (final IOException | RuntimeException e) {
+        // the batch is not used
+        this.ahead.count = 0;
+      }
+    }
+  }
+
+  /**
+   * A buffer an input decrypts chunks into. Clones and slices share the current chunk without a
+   * copy and only mark its buffer as shared (copy-on-write), the input then decrypts its next chunk
+   * into a new buffer. The mark is idempotent, so clones can be created by several threads at once
+   * without modifying the input they are cloned from.
+   */
+  private static final class ChunkBuffer {
+    private final ByteBuffer buffer;
+    private volatile boolean shared;
+
+    private ChunkBuffer(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private static final class Batch {
+    private long first;
+    /** 0 if the batch is not scheduled */
+    private int count;
+
+    private FutureTask<Void> task;
+    private byte[] cipherText;
+    private ChunkBuffer[] plainTexts;
+
+    private boolean contains(long absoluteChunkNum) {
+      return absoluteChunkNum >= this.first && absoluteChunkNum < this.first + this.count;
+    }
+
+    /** @return the decrypted chunk */
+    private ChunkBuffer plainText(long absoluteChunkNum) {
+      final ChunkBuffer plainText = this.plainTexts[(int) (absoluteChunkNum - this.first)];
+      plainText.buffer.rewind();
+      return plainText;
+    }
+
+    private void await() throws IOException {
+      if (this.task == null) {
+        return;
+      }
+
+      try {
+        this.task.get();
+      } catch (final InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      } catch (final ExecutionException e) {
+        // a failed batch is not used again
+        this.count = 0;
+
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      } finally {
+        this.task = null;
+      }
+    }
+  }
+
   private static class EmptyIndexInput extends IndexInput {
 
     protected EmptyIndexInput() {
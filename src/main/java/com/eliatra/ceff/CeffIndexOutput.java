@@ -11,29 +11,85 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.CRC32;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * A {@link IndexOutput} implementations which wraps another IndexOutput and encrypts all write
  * requests.
+ *
+ * <p>If an executor is given full chunks are encrypted by the executor while the writing thread
+ * already fills the next chunk. Nonces, chunk ids and the signature are still created on the
+ * writing thread in chunk order and the cipher text is written to the delegate in chunk order, so
+ * the file format, the signature and the checksum are the same as for sequential encryption.
+ *
+ * <p>See {@link CeffUtils#FORMAT_VERSION_1}, {@link CeffUtils#FORMAT_VERSION_2} and {@link
+ * CeffUtils#FORMAT_VERSION_3} for the differences of the format versions.
  */
-public final class CeffIndexOutput extends IndexOutput {
+public final class CeffIndexOutput extends IndexOutput implements Accountable {
+
+  private static final long BASE_RAM_BYTES_USED =
+      RamUsageEstimator.shallowSizeOfInstance(CeffIndexOutput.class);
 
   private final IndexOutput delegate;
   private final int chunkLength;
   private final byte[] key;
+  /** the key the chunks are encrypted with, the derived subkey for format version 3 */
+  private final byte[] chunkKey;
+
+  /** the chunk which is currently written to */
+  private Chunk current;
+  /** the plain text buffer of the current chunk */
+  private ByteBuffer buffer;
+  /** chunks which are encrypted by the executor, in chunk order */
+  private final ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+  /** chunks which were written and can be reused */
+  private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+
+  private final List<Chunk> allocated = new ArrayList<>();
+  private volatile int allocatedChunks;
+  /** null if chunks are encrypted on the writing thread */
+  private final Executor executor;
+
+  private final int maxInFlightChunks;
+  /** null if there is no pool */
+  private final CeffBufferPool pool;
+  /** the open inputs and outputs of the directory, null if not created by a directory */
+  private final Set<Accountable> openFiles;
+  /** null if there are no metrics */
+  private final CeffMetricsListener.FileMetrics metrics;
 
-  private final ByteBuffer buffer;
-  private final byte[] singleByteBuffer = new byte[1];
   private final CRC32 crc32 = new CRC32();
+  /** the bytes of the current chunk before this position are already added to the checksum */
+  private int checksumPosition = 0;
+
   private final ByteBuffer aadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
   private final ByteBuffer signatureAadBuffer = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+  /** null for format version 2 */
   private final MessageDigest sha512md;
 
+  private final int formatVersion;
+  /** random id of the file, null for format version 1 */
+  private final UUID fileId;
+  /** random salt of the subkey, only for format version 3 */
+  private final byte[] salt;
+
   private long filePointer = 0L;
   private long chunk = 0L;
+  private boolean closed = false;
 
   private final CeffMode mode;
 
@@ -49,36 +105,158 @@ public final class CeffIndexOutput extends IndexOutput {
    */
   public CeffIndexOutput(IndexOutput delegate, int chunkLength, byte[] key, CeffMode mode)
       throws IOException {
+    this(
+        delegate,
+        chunkLength,
+        key,
+        mode,
+        CeffUtils.CURRENT_FORMAT_VERSION,
+        null,
+        null,
+        null,
+        0,
+        null);
+  }
+
+  /**
+   * @param delegate The wrapped output
+   * @param chunkLength Length of a chunk in bytes. See {@link CeffMode}
+   * @param key The encryption/decryption key (the array is cloned)
+   * @param mode See {@link CeffMode}
+   * @param formatVersion The format version to write, see {@link CeffUtils#FORMAT_VERSION_2}
+   * @param pool The buffer pool or null
+   * @param openFiles The open inputs and outputs of the directory (this output adds itself and
+   *     removes itself on close) or null
+   * @param executor The executor for parallel encryption or null to encrypt on the writing thread
+   * @param maxInFlightChunks The max number of chunks which are encrypted by the executor at the
+   *     same time, the writing thread waits for the oldest chunk if there are more
+   * @param metrics The metrics of the file or null
+   */
+  CeffIndexOutput(
+      IndexOutput delegate,
+      int chunkLength,
+      byte[] key,
+      CeffMode mode,
+      int formatVersion,
+      CeffBufferPool pool,
+      Set<Accountable> openFiles,
+      Executor executor,
+      int maxInFlightChunks,
+      CeffMetricsListener.FileMetrics metrics)
+      throws IOException {
     super("Ceff " + delegate.toString(), delegate.getName());
     this.delegate = delegate;
     this.chunkLength = chunkLength;
+    this.pool = pool;
+    this.openFiles = openFiles;
+    this.executor = executor;
+    this.maxInFlightChunks = maxInFlightChunks;
+    this.metrics = metrics;
+
+    if (executor != null && maxInFlightChunks < 1) {
+      throw new IllegalArgumentException("maxInFlightChunks must be >= 1");
+    }
+
     this.mode = mode;
     this.mode.validateKey(key);
     this.key = key.clone();
     CeffUtils.validateChunkLength(this.chunkLength);
 
-    try {
-      this.sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
-    } catch (final NoSuchAlgorithmException e) {
-      // can not happen
-      throw new RuntimeException(e);
+    this.formatVersion = formatVersion;
+    final int magic = CeffUtils.magic(formatVersion);
+
+    if (formatVersion == CeffUtils.FORMAT_VERSION_1) {
+      try {
+        this.sha512md = MessageDigest.getInstance(CeffUtils.SHA512_DIGEST_ALGO);
+      } catch (final NoSuchAlgorithmException e) {
+        // can not happen
+        throw new RuntimeException(e);
+      }
+      this.fileId = null;
+      this.salt = null;
+      this.chunkKey = this.key;
+    } else if (formatVersion == CeffUtils.FORMAT_VERSION_2) {
+      this.sha512md = null;
+      this.fileId = UUID.randomUUID();
+      this.salt = null;
+      this.chunkKey = this.key;
+    } else {
+      // fails early for modes with short nonces
+      CeffUtils.counterNonce(mode, 0);
+
+      // the only random values of the file besides the footer nonce
+      final byte[] randomBytes = new byte[2 * Long.BYTES + CeffUtils.SALT_LENGTH];
+      CeffMode.SECURE_RANDOM.nextBytes(randomBytes);
+      final ByteBuffer random = ByteBuffer.wrap(randomBytes);
+      this.sha512md = null;
+      this.fileId = new UUID(random.getLong(), random.getLong());
+      this.salt = new byte[CeffUtils.SALT_LENGTH];
+      random.get(this.salt);
+      this.chunkKey = CeffUtils.deriveFileKey(this.key, this.salt, mode);
     }
-    this.buffer = ByteBuffer.allocate(this.chunkLength);
 
-    delegate.writeInt(CeffUtils.CEFF_MAGIC); // write magic bytes
+    delegate.writeInt(magic); // write magic bytes
     delegate.writeByte(mode.getModeByte()); // write mode byte
+
+    this.current = this.allocateChunk();
+    this.buffer = this.current.plainText;
+
+    if (this.openFiles != null) {
+      this.openFiles.add(this);
+    }
   }
 
   @Override
   public void close() throws IOException {
+    if (this.closed) {
+      // the buffers may already be used by another output
+      return;
+    }
+
+    this.closed = true;
+    final CeffEvents.Event event = CeffEvents.INSTANCE.begin(CeffEvents.Type.CLOSE);
+
     try {
       // encrypt last chunk
       this.encryptChunk(true);
     } finally {
-      this.delegate.close();
+      try {
+        // after a failure chunks may still be encrypted, their buffers can not be released before
+        for (final Chunk chunk : this.inFlight) {
+          try {
+            chunk.encryption.get();
+          } catch (final InterruptedException | ExecutionException | RuntimeException e) {
+            // ignore, the original exception is thrown
+          }
+        }
+
+        this.delegate.close();
+      } finally {
+        if (this.pool != null) {
+          for (final Chunk chunk : this.allocated) {
+            this.pool.release(chunk.plainText);
+            this.pool.release(chunk.cipherText);
+          }
+        }
+
+        if (this.openFiles != null) {
+          this.openFiles.remove(this);
+        }
+      }
+    }
+
+    if (event != null) {
+      event.commit(this.getName(), this.chunk - 1, this.filePointer, this.mode);
     }
   }
 
+  /** @return The bytes used by this output and its buffers */
+  @Override
+  public long ramBytesUsed() {
+    return BASE_RAM_BYTES_USED
+        + ((long) this.allocatedChunks * (this.chunkLength + this.cipherTextLength()));
+  }
+
   @Override
   public long getFilePointer() {
     // need to return the plain text oriented file pointer position
@@ -88,17 +266,82 @@ public final class CeffIndexOutput extends IndexOutput {
   @Override
   public long getChecksum() throws IOException {
     // need to return the plain text checksum
+    if (!this.closed) {
+      // after close the buffers may already be used by another output
+      this.updateChecksum();
+    }
     return this.crc32.getValue();
   }
 
+  /** Add the bytes written to the current chunk since the last update to the checksum */
+  private void updateChecksum() {
+    final int position = this.buffer.position();
+
+    if (position > this.checksumPosition) {
+      this.buffer.limit(position).position(this.checksumPosition);
+      this.crc32.update(this.buffer);
+      this.buffer.limit(this.buffer.capacity());
+      this.checksumPosition = position;
+    }
+  }
+
+  /** @throws AlreadyClosedException if this output is closed, its buffers may be reused */
+  private void ensureOpen() {
+    if (this.closed) {
+      throw new AlreadyClosedException("this output is closed: " + this);
+    }
+  }
+
+  // the primitive writes put directly into the current chunk if the value fits and fall back to
+  // writing byte by byte at chunk boundaries
+
   @Override
   public void writeByte(byte b) throws IOException {
-    this.singleByteBuffer[0] = b;
-    this.writeBytes(this.singleByteBuffer, 0, 1);
+    this.ensureOpen();
+    if (!this.buffer.hasRemaining()) {
+      this.encryptChunk(false);
+    }
+
+    this.buffer.put(b);
+    this.filePointer++;
+  }
+
+  @Override
+  public void writeShort(short i) throws IOException {
+    this.ensureOpen();
+    if (this.buffer.remaining() >= Short.BYTES) {
+      this.buffer.putShort(i);
+      this.filePointer += Short.BYTES;
+    } else {
+      super.writeShort(i);
+    }
+  }
+
+  @Override
+  public void writeInt(int i) throws IOException {
+    this.ensureOpen();
+    if (this.buffer.remaining() >= Integer.BYTES) {
+      this.buffer.putInt(i);
+      this.filePointer += Integer.BYTES;
+    } else {
+      super.writeInt(i);
+    }
+  }
+
+  @Override
+  public void writeLong(long i) throws IOException {
+    this.ensureOpen();
+    if (this.buffer.remaining() >= Long.BYTES) {
+      this.buffer.putLong(i);
+      this.filePointer += Long.BYTES;
+    } else {
+      super.writeLong(i);
+    }
   }
 
   @Override
   public void writeBytes(byte[] b, int offset, int length) throws IOException {
+    this.ensureOpen();
 
     if (length == 0) {
       return;
@@ -132,17 +375,59 @@ public final class CeffIndexOutput extends IndexOutput {
 
     assert written == length;
 
-    this.crc32.update(b, offset, length);
     this.filePointer += length;
   }
 
   private void encryptChunk(boolean lastChunk) throws IOException {
 
+    // the plain text of the chunk is encrypted (possibly by another thread) and reused afterwards
+    this.updateChecksum();
+    this.checksumPosition = 0;
+
     try {
-      this.buffer.flip();
-      final byte[] cipherText = this.encryptData(this.buffer, lastChunk);
-      this.delegate.writeBytes(cipherText, 0, cipherText.length);
-      this.buffer.clear();
+      final Chunk chunk = this.current;
+      chunk.plainText.flip();
+      final byte[] nonce = this.prepareChunk(chunk);
+
+      if (this.executor == null || lastChunk) {
+        // the cipher text of all previous chunks has to be written first
+        while (!this.inFlight.isEmpty()) {
+          this.writeInFlightChunk();
+        }
+
+        this.encryptData(chunk, this.chunk, nonce);
+
+        if (lastChunk) {
+          this.encryptSignature(chunk);
+        }
+
+        this.delegate.writeBytes(chunk.cipherText.array(), 0, chunk.cipherText.position());
+        chunk.plainText.clear();
+      } else {
+        // backpressure
+        while (this.inFlight.size() >= this.maxInFlightChunks) {
+          this.writeInFlightChunk();
+        }
+
+        final long chunkNum = this.chunk;
+        chunk.encryption =
+            new FutureTask<>(
+                () -> {
+                  this.encryptData(chunk, chunkNum, nonce);
+                  return null;
+                });
+        this.inFlight.add(chunk);
+
+        try {
+          this.executor.execute(chunk.encryption);
+        } catch (final RejectedExecutionException e) {
+          // e.g. the executor was shut down
+          chunk.encryption.run();
+        }
+
+        this.current = this.nextChunk();
+        this.buffer = this.current.plainText;
+      }
 
       this.chunk++;
     } catch (final CeffCryptoException e) {
@@ -150,44 +435,166 @@ public final class CeffIndexOutput extends IndexOutput {
     }
   }
 
-  private byte[] encryptData(ByteBuffer plainText, boolean lastChunk) throws CeffCryptoException {
-    final UUID chunkId = UUID.randomUUID();
-    final byte[] nonce = this.mode.randomNonce();
+  /**
+   * @return a free chunk, at most one more chunk than the max number of in-flight chunks is
+   *     allocated
+   */
+  private Chunk nextChunk() throws IOException {
+    // write what is already encrypted
+    while (!this.inFlight.isEmpty() && this.inFlight.peek().encryption.isDone()) {
+      this.writeInFlightChunk();
+    }
+
+    return this.free.isEmpty() ? this.allocateChunk() : this.free.pop();
+  }
+
+  /** Wait until the oldest in-flight chunk is encrypted and write it */
+  private void writeInFlightChunk() throws IOException {
+    final Chunk chunk = this.inFlight.poll();
+
+    try {
+      chunk.encryption.get();
+    } catch (final InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof CeffCryptoException) {
+        throw new IOException(e.getCause());
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+
+    chunk.encryption = null;
+    this.delegate.writeBytes(chunk.cipherText.array(), 0, chunk.cipherText.position());
+    chunk.plainText.clear();
+    this.free.push(chunk);
+  }
+
+  private Chunk allocateChunk() {
+    final Chunk chunk;
+
+    if (this.pool != null) {
+      chunk =
+          new Chunk(
+              this.pool.acquire(this.chunkLength), this.pool.acquireHeap(this.cipherTextLength()));
+    } else {
+      chunk =
+          new Chunk(
+              ByteBuffer.allocate(this.chunkLength), ByteBuffer.allocate(this.cipherTextLength()));
+    }
+
+    this.allocated.add(chunk);
+    this.allocatedChunks = this.allocated.size();
+    return chunk;
+  }
+
+  private int cipherTextLength() {
+    return CeffUtils.cryptoLength(this.mode) + this.chunkLength + CeffUtils.footerLength(this.mode);
+  }
+
+  /**
+   * Write nonce and aad of the current chunk into its cipher text buffer and add the aad to the
+   * signature. Always called on the writing thread in chunk order.
+   *
+   * @return The nonce
+   */
+  private byte[] prepareChunk(Chunk chunk) {
+    // version 1 uses a random id per chunk, version 2 and 3 the file id
+    final UUID chunkId = this.fileId != null ? this.fileId : UUID.randomUUID();
+    final byte[] nonce =
+        this.salt != null ? CeffUtils.counterNonce(this.mode, this.chunk) : this.mode.randomNonce();
 
     this.aadBuffer.clear();
     this.aadBuffer.putLong(this.chunk);
     this.aadBuffer.putLong(chunkId.getMostSignificantBits());
     this.aadBuffer.putLong(chunkId.getLeastSignificantBits());
     this.aadBuffer.flip();
-    this.sha512md.update(this.aadBuffer);
-    this.aadBuffer.rewind();
-
-    final byte[] cipherText = this.mode.encrypt(this.buffer, this.aadBuffer, this.key, nonce);
-
-    this.aadBuffer.rewind();
-    if (lastChunk) {
-
-      this.signatureAadBuffer.clear();
-      this.signatureAadBuffer.putLong(this.chunkLength);
-      this.signatureAadBuffer.putLong(this.chunk);
-      this.signatureAadBuffer.putLong(this.filePointer);
-      this.signatureAadBuffer.flip();
-
-      final byte[] signatureNonce = this.mode.randomNonce();
-      final byte[] signature = this.sha512md.digest();
-      final byte[] signatureCipherText =
-          this.mode.encrypt(
-              ByteBuffer.wrap(signature), this.signatureAadBuffer, this.key, signatureNonce);
-      this.signatureAadBuffer.rewind();
-      return CeffUtils.concatArrays(
-          nonce,
-          CeffUtils.toArray(this.aadBuffer),
-          cipherText,
-          signatureNonce,
-          CeffUtils.toArray(this.signatureAadBuffer),
-          signatureCipherText);
+
+    if (this.sha512md != null) {
+      this.sha512md.update(this.aadBuffer);
+      this.aadBuffer.rewind();
+    }
+
+    // nonce | aad | cipher text (incl. tag) are written directly into the cipher buffer
+    chunk.cipherText.clear();
+    chunk.cipherText.put(nonce);
+    chunk.cipherText.put(this.aadBuffer);
+    return nonce;
+  }
+
+  /** Encrypt the plain text of a prepared chunk, may be called on any thread */
+  private void encryptData(Chunk chunk, long chunkNum, byte[] nonce) throws CeffCryptoException {
+    final ByteBuffer aad = chunk.cipherText.duplicate();
+    aad.position(this.mode.getNonceLength());
+    aad.limit(this.mode.getNonceLength() + CeffUtils.AAD_LENGTH);
+
+    final int bytes = chunk.plainText.remaining();
+    final CeffEvents.Event event = CeffEvents.INSTANCE.begin(CeffEvents.Type.ENCRYPT);
+    final long start = this.metrics != null ? System.nanoTime() : 0L;
+    this.mode.encrypt(chunk.plainText, aad, this.chunkKey, nonce, chunk.cipherText);
+
+    if (this.metrics != null) {
+      this.metrics.chunkEncrypted(bytes, System.nanoTime() - start);
+    }
+
+    if (event != null) {
+      event.commit(this.getName(), chunkNum, bytes, this.mode);
+    }
+  }
+
+  private void encryptSignature(Chunk chunk) throws CeffCryptoException {
+    this.signatureAadBuffer.clear();
+    this.signatureAadBuffer.putLong(this.chunkLength);
+    this.signatureAadBuffer.putLong(this.chunk);
+    this.signatureAadBuffer.putLong(this.filePointer);
+    this.signatureAadBuffer.flip();
+
+    final byte[] signatureNonce = this.mode.randomNonce();
+    final byte[] signature;
+
+    if (this.sha512md != null) {
+      signature = this.sha512md.digest();
     } else {
-      return CeffUtils.concatArrays(nonce, CeffUtils.toArray(this.aadBuffer), cipherText);
+      // the file id (and the salt) followed by zeros, the aad binds it to the length of the file
+      signature = new byte[CeffUtils.SIGNATURE_LENGTH];
+      final ByteBuffer signatureBuffer =
+          ByteBuffer.wrap(signature)
+              .putLong(this.fileId.getMostSignificantBits())
+              .putLong(this.fileId.getLeastSignificantBits());
+
+      if (this.salt != null) {
+        signatureBuffer.put(this.salt);
+      }
+    }
+
+    // signature nonce | signature aad | signature cipher text (incl. tag)
+    chunk.cipherText.put(signatureNonce);
+    chunk.cipherText.put(this.signatureAadBuffer);
+    this.signatureAadBuffer.rewind();
+    this.mode.encrypt(
+        ByteBuffer.wrap(signature),
+        this.signatureAadBuffer,
+        this.key,
+        signatureNonce,
+        chunk.cipherText);
+  }
+
+  /** The plain text and cipher text buffers of one chunk */
+  private static final class Chunk {
+    private final ByteBuffer plainText;
+    /** nonce, aad and cipher text of a chunk (and the footer for the last chunk), always on-heap */
+    private final ByteBuffer cipherText;
+    /** the encryption by the executor, null if not in-flight */
+    private FutureTask<Void> encryption;
+
+    private Chunk(ByteBuffer plainText, ByteBuffer cipherText) {
+      this.plainText = plainText;
+      this.cipherText = cipherText;
     }
   }
 }
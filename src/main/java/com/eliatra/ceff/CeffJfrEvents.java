@@ -0,0 +1,135 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events. All events are disabled by default and have to be enabled in the
+ * recording settings, e.g. in a custom {@code .jfc} file or in JDK Mission Control. As long as an
+ * event type is not enabled no event object is created.
+ *
+ * <p>Only loaded by {@link CeffEvents} if the runtime supports JFR.
+ */
+final class CeffJfrEvents extends CeffEvents {
+
+  // disabled events are only checked, never allocated
+  private static final OpenEvent OPEN = new OpenEvent();
+  private static final SliceEvent SLICE = new SliceEvent();
+  private static final ChunkDecryptEvent DECRYPT = new ChunkDecryptEvent();
+  private static final ChunkEncryptEvent ENCRYPT = new ChunkEncryptEvent();
+  private static final CloseEvent CLOSE = new CloseEvent();
+
+  CeffJfrEvents() {
+    // the event types are listed in the recording settings before the first event is committed
+    FlightRecorder.register(OpenEvent.class);
+    FlightRecorder.register(SliceEvent.class);
+    FlightRecorder.register(ChunkDecryptEvent.class);
+    FlightRecorder.register(ChunkEncryptEvent.class);
+    FlightRecorder.register(CloseEvent.class);
+  }
+
+  @Override
+  Event begin(Type type) {
+    final CeffEvent event;
+
+    switch (type) {
+      case OPEN:
+        event = OPEN.isEnabled() ? new OpenEvent() : null;
+        break;
+      case SLICE:
+        event = SLICE.isEnabled() ? new SliceEvent() : null;
+        break;
+      case DECRYPT:
+        event = DECRYPT.isEnabled() ? new ChunkDecryptEvent() : null;
+        break;
+      case ENCRYPT:
+        event = ENCRYPT.isEnabled() ? new ChunkEncryptEvent() : null;
+        break;
+      case CLOSE:
+        event = CLOSE.isEnabled() ? new CloseEvent() : null;
+        break;
+      default:
+        throw new IllegalArgumentException("unknown event type " + type);
+    }
+
+    if (event != null) {
+      event.begin();
+    }
+
+    return event;
+  }
+
+  @Category({"Lucene", "CEFF"})
+  @Enabled(false)
+  abstract static class CeffEvent extends jdk.jfr.Event implements Event {
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("Chunk")
+    @Description("The chunk number, the last chunk for open and close, the first chunk for slices")
+    long chunk;
+
+    @Label("Bytes")
+    @Description("The plain text length of the chunk, file or slice")
+    @DataAmount
+    long bytes;
+
+    @Label("Mode")
+    String mode;
+
+    @Override
+    public void commit(String fileName, long chunk, long bytes, CeffMode mode) {
+      this.end();
+
+      if (this.shouldCommit()) {
+        this.fileName = fileName;
+        this.chunk = chunk;
+        this.bytes = bytes;
+        this.mode = mode.getClass().getSimpleName();
+        this.commit();
+      }
+    }
+  }
+
+  @Name("com.eliatra.ceff.Open")
+  @Label("CEFF Open")
+  @Description("Open of an encrypted file including the verification of the footer")
+  static final class OpenEvent extends CeffEvent {}
+
+  @Name("com.eliatra.ceff.Slice")
+  @Label("CEFF Slice")
+  @Description("Creation of a slice of an encrypted file")
+  static final class SliceEvent extends CeffEvent {}
+
+  @Name("com.eliatra.ceff.ChunkDecrypt")
+  @Label("CEFF Chunk Decrypt")
+  @Description(
+      "Verification and decryption of a chunk (chunks served by the cache are not decrypted)")
+  @StackTrace(false)
+  static final class ChunkDecryptEvent extends CeffEvent {}
+
+  @Name("com.eliatra.ceff.ChunkEncrypt")
+  @Label("CEFF Chunk Encrypt")
+  @Description("Encryption of a chunk, possibly by the encryption executor")
+  @StackTrace(false)
+  static final class ChunkEncryptEvent extends CeffEvent {}
+
+  @Name("com.eliatra.ceff.Close")
+  @Label("CEFF Close")
+  @Description("Close of an encrypted output including the last chunk and the footer")
+  static final class CloseEvent extends CeffEvent {}
+}
@@ -0,0 +1,234 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * A {@link CeffMetricsListener} which counts the events broken down by file extension (e.g. "doc",
+ * "tim" or "fdt") and IO context ({@link IOContext.Context#DEFAULT}, {@link
+ * IOContext.Context#READ}, {@link IOContext.Context#MERGE}, {@link IOContext.Context#FLUSH} or
+ * {@link #READ_ONCE}). One instance can be shared by several directories.
+ */
+public final class CeffMetrics implements CeffMetricsListener {
+
+  /** The context name of files opened with a read once context */
+  public static final String READ_ONCE = "READONCE";
+
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+  @Override
+  public FileMetrics file(String fileName, IOContext context) {
+    final String extension = Objects.toString(IndexFileNames.getExtension(fileName), "");
+    final String contextName = context.readOnce ? READ_ONCE : context.context.name();
+    return this.stats.computeIfAbsent(
+        extension + "/" + contextName, k -> new Stats(extension, contextName));
+  }
+
+  /** @return The stats of all extension and context combinations which had events so far */
+  public List<Stats> getStats() {
+    final List<Stats> stats = new ArrayList<>(this.stats.values());
+    stats.sort(
+        Comparator.comparing(Stats::getExtension)
+            .thenComparing(Comparator.comparing(Stats::getContext)));
+    return Collections.unmodifiableList(stats);
+  }
+
+  /**
+   * @param extension The file extension
+   * @param context The context name
+   * @return The stats or null if there were no events
+   */
+  public Stats getStats(String extension, String context) {
+    return this.stats.get(extension + "/" + context);
+  }
+
+  /** Reset all counters */
+  public void clear() {
+    this.stats.clear();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("CeffMetrics [");
+    for (final Stats stats : this.getStats()) {
+      sb.append('\n').append("  ").append(stats);
+    }
+    return sb.append(']').toString();
+  }
+
+  /** The counters of one file extension and context */
+  public static final class Stats implements FileMetrics {
+    private final String extension;
+    private final String context;
+    private final LongAdder chunksEncrypted = new LongAdder();
+    private final LongAdder bytesEncrypted = new LongAdder();
+    private final LongAdder encryptNanos = new LongAdder();
+    private final LongAdder chunksDecrypted = new LongAdder();
+    private final LongAdder bytesDecrypted = new LongAdder();
+    private final LongAdder decryptNanos = new LongAdder();
+    private final LongAdder chunksPartiallyDecrypted = new LongAdder();
+    private final LongAdder bytesPartiallyDecrypted = new LongAdder();
+    private final LongAdder partialDecryptNanos = new LongAdder();
+    private final LongAdder chunksRedecrypted = new LongAdder();
+    private final LongAdder clones = new LongAdder();
+    private final LongAdder slices = new LongAdder();
+    private final LongAdder opens = new LongAdder();
+    private final LongAdder openNanos = new LongAdder();
+
+    private Stats(String extension, String context) {
+      this.extension = extension;
+      this.context = context;
+    }
+
+    @Override
+    public void chunkEncrypted(int bytes, long nanos) {
+      this.chunksEncrypted.increment();
+      this.bytesEncrypted.add(bytes);
+      this.encryptNanos.add(nanos);
+    }
+
+    @Override
+    public void chunkDecrypted(int bytes, long nanos) {
+      this.chunksDecrypted.increment();
+      this.bytesDecrypted.add(bytes);
+      this.decryptNanos.add(nanos);
+    }
+
+    @Override
+    public void chunkPartiallyDecrypted(int bytes, long nanos) {
+      this.chunksPartiallyDecrypted.increment();
+      this.bytesPartiallyDecrypted.add(bytes);
+      this.partialDecryptNanos.add(nanos);
+    }
+
+    @Override
+    public void chunkRedecrypted() {
+      this.chunksRedecrypted.increment();
+    }
+
+    @Override
+    public void cloned() {
+      this.clones.increment();
+    }
+
+    @Override
+    public void sliced() {
+      this.slices.increment();
+    }
+
+    @Override
+    public void opened(long nanos) {
+      this.opens.increment();
+      this.openNanos.add(nanos);
+    }
+
+    /** @return The file extension, empty if the files have no extension */
+    public String getExtension() {
+      return this.extension;
+    }
+
+    /** @return The name of the {@link IOContext.Context} or {@link CeffMetrics#READ_ONCE} */
+    public String getContext() {
+      return this.context;
+    }
+
+    public long getChunksEncrypted() {
+      return this.chunksEncrypted.sum();
+    }
+
+    public long getBytesEncrypted() {
+      return this.bytesEncrypted.sum();
+    }
+
+    public long getEncryptNanos() {
+      return this.encryptNanos.sum();
+    }
+
+    public long getChunksDecrypted() {
+      return this.chunksDecrypted.sum();
+    }
+
+    public long getBytesDecrypted() {
+      return this.bytesDecrypted.sum();
+    }
+
+    public long getDecryptNanos() {
+      return this.decryptNanos.sum();
+    }
+
+    /** @return The number of positional reads which decrypted only a part of a chunk */
+    public long getChunksPartiallyDecrypted() {
+      return this.chunksPartiallyDecrypted.sum();
+    }
+
+    public long getBytesPartiallyDecrypted() {
+      return this.bytesPartiallyDecrypted.sum();
+    }
+
+    public long getPartialDecryptNanos() {
+      return this.partialDecryptNanos.sum();
+    }
+
+    /** @return The number of decrypted chunks which were already passed before, see seeks */
+    public long getChunksRedecrypted() {
+      return this.chunksRedecrypted.sum();
+    }
+
+    public long getClones() {
+      return this.clones.sum();
+    }
+
+    public long getSlices() {
+      return this.slices.sum();
+    }
+
+    public long getOpens() {
+      return this.opens.sum();
+    }
+
+    public long getOpenNanos() {
+      return this.openNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ROOT,
+          "%s/%s: encrypted %d chunks %d bytes %.3f ms, decrypted %d chunks %d bytes %.3f ms,"
+              + " partially decrypted %d chunks %d bytes %.3f ms, redecrypted %d chunks,"
+              + " %d clones, %d slices, %d opens %.3f ms",
+          this.extension,
+          this.context,
+          this.getChunksEncrypted(),
+          this.getBytesEncrypted(),
+          this.getEncryptNanos() / 1e6,
+          this.getChunksDecrypted(),
+          this.getBytesDecrypted(),
+          this.getDecryptNanos() / 1e6,
+          this.getChunksPartiallyDecrypted(),
+          this.getBytesPartiallyDecrypted(),
+          this.getPartialDecryptNanos() / 1e6,
+          this.getChunksRedecrypted(),
+          this.getClones(),
+          this.getSlices(),
+          this.getOpens(),
+          this.getOpenNanos() / 1e6);
+    }
+  }
+}
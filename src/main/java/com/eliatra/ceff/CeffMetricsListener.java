@@ -0,0 +1,82 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Receives metrics about the encryption and decryption activity of a {@link CeffDirectory}, see
+ * {@link CeffDirectory#setMetricsListener(CeffMetricsListener)} and the built-in {@link
+ * CeffMetrics}.
+ *
+ * <p>The listener is asked once per opened or created file for a {@link FileMetrics} instance which
+ * then receives all events of the file, its clones and its slices. So the events of a file can be
+ * counted without any lookup. The events are reported from the reading and writing threads and from
+ * the executors for parallel encryption and readahead, so implementations must be thread-safe and
+ * cheap.
+ */
+public interface CeffMetricsListener {
+
+  /**
+   * Called when a file is opened or created
+   *
+   * @param fileName The name of the file
+   * @param context The context the file is opened or created with
+   * @return The metrics of the file or null to ignore the file
+   */
+  FileMetrics file(String fileName, IOContext context);
+
+  /** The metrics of one opened or created file. All methods do nothing by default. */
+  interface FileMetrics {
+
+    /**
+     * A chunk was encrypted
+     *
+     * @param bytes The plain text length of the chunk
+     * @param nanos The time spent in {@link CeffMode}
+     */
+    default void chunkEncrypted(int bytes, long nanos) {}
+
+    /**
+     * A chunk was decrypted (chunks served by the {@link CeffChunkCache} are not reported)
+     *
+     * @param bytes The plain text length of the chunk
+     * @param nanos The time spent in {@link CeffMode}
+     */
+    default void chunkDecrypted(int bytes, long nanos) {}
+
+    /**
+     * A positional read decrypted only a part of a chunk which was verified before, see {@link
+     * CeffDirectory#setPartialDecryption(boolean)}
+     *
+     * @param bytes The number of decrypted bytes (whole key stream blocks)
+     * @param nanos The time spent in {@link CeffMode}
+     */
+    default void chunkPartiallyDecrypted(int bytes, long nanos) {}
+
+    /**
+     * A seek (or positional read) forced the decryption of a chunk which the input (or the input it
+     * was cloned from) already passed before
+     */
+    default void chunkRedecrypted() {}
+
+    /** The input was cloned */
+    default void cloned() {}
+
+    /** A slice of the input was created */
+    default void sliced() {}
+
+    /**
+     * The file was opened
+     *
+     * @param nanos The time spent to read and verify the footer (for format version 1 also all
+     *     chunk aads) and to decrypt the first chunk
+     */
+    default void opened(long nanos) {}
+  }
+}
@@ -7,14 +7,21 @@
  */
 package com.eliatra.ceff;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import org.apache.lucene.util.Constants;
 
 /**
@@ -138,16 +145,127 @@ public abstract class CeffMode {
   public abstract byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
       throws CeffCryptoException;
 
+  /**
+   * Encrypt plain text and additional authenticated data into a caller owned buffer. The default
+   * implementation delegates to {@link #encrypt(ByteBuffer, ByteBuffer, byte[], byte[])} and copies
+   * the result, modes should override it to avoid the intermediate array.
+   *
+   * @param plainText The plain text, consumed from its position to its limit
+   * @param aad Additional authenticated data
+   * @param key The key used for encryption
+   * @param nonce The Nonce/IV used for encryption
+   * @param cipherText The destination (heap or direct), must have at least {@code
+   *     plainText.remaining() + getTagLength()} bytes remaining. The cipher text (including
+   *     authentication tag) is written starting at its position which is advanced accordingly.
+   * @return The number of bytes written to cipherText
+   * @throws CeffCryptoException in case there is an encryption issue
+   */
+  public int encrypt(
+      ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer cipherText)
+      throws CeffCryptoException {
+    final byte[] result = this.encrypt(plainText, aad, key, nonce);
+    cipherText.put(result);
+    return result.length;
+  }
+
+  /**
+   * Decrypt cipher text and verify additional authenticated data (AAD) into a caller owned buffer.
+   * The default implementation delegates to {@link #decrypt(ByteBuffer, ByteBuffer, byte[],
+   * byte[])} and copies the result, modes should override it to avoid the intermediate array.
+   *
+   * @param cipherText The cipher text (including authentication tag), consumed from its position to
+   *     its limit
+   * @param aad Additional authenticated data TO VERIFY
+   * @param key The key used for decryption
+   * @param nonce The Nonce/IV used for decryption
+   * @param plainText The destination (heap or direct), must have at least {@code
+   *     cipherText.remaining() - getTagLength()} bytes remaining. The plain text is written
+   *     starting at its position which is advanced accordingly.
+   * @return The number of bytes written to plainText
+   * @throws CeffCryptoException in case the plain text can not be decrypted or the AAD can not be
+   *     verified
+   */
+  public int decrypt(
+      ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer plainText)
+      throws CeffCryptoException {
+    final byte[] result = this.decrypt(cipherText, aad, key, nonce);
+    plainText.put(result);
+    return result.length;
+  }
+
+  /**
+   * Modes which are a stream cipher underneath (like AES-GCM and ChaCha20-Poly1305) can decrypt a
+   * part of a chunk on its own with {@link #decryptPart(ByteBuffer, byte[], byte[], long,
+   * ByteBuffer)}.
+   *
+   * @return The length of the key stream blocks or 0 if the mode can not decrypt parts of a chunk
+   *     (the default)
+   */
+  public int getKeyStreamBlockLength() {
+    return 0;
+  }
+
+  /**
+   * Decrypt a part of the cipher text of a chunk WITHOUT verifying the authentication tag. Callers
+   * must have verified the whole chunk with {@link #decrypt(ByteBuffer, ByteBuffer, byte[], byte[],
+   * ByteBuffer)} before.
+   *
+   * @param cipherText The cipher text, starting at a key stream block of the chunk, consumed from
+   *     its position to its limit
+   * @param key The key used for decryption
+   * @param nonce The Nonce/IV of the chunk
+   * @param block The index of the first key stream block of the cipher text in the chunk
+   * @param plainText The destination, must have at least {@code cipherText.remaining()} bytes
+   *     remaining
+   * @return The number of bytes written to plainText
+   * @throws CeffCryptoException in case the cipher text can not be decrypted
+   * @throws UnsupportedOperationException if {@link #getKeyStreamBlockLength()} is 0
+   */
+  public int decryptPart(
+      ByteBuffer cipherText, byte[] key, byte[] nonce, long block, ByteBuffer plainText)
+      throws CeffCryptoException {
+    throw new UnsupportedOperationException(
+        this.getClass().getSimpleName() + " can not decrypt parts of a chunk");
+  }
+
   private static final class AesGcmMode extends CeffMode {
 
     private static final int IV_LEN = 12; // 12 bytes
     private static final int TAG_LEN = 128; // 128 bits = 16 bytes
     private static final String ALGO = "AES/GCM/NoPadding";
 
+    private final CeffCipherCache ciphers = new CeffCipherCache(ALGO, "AES");
+    // GCM encrypts with AES in counter mode
+    private final CeffCipherCache partCiphers = new CeffCipherCache("AES/CTR/NoPadding", "AES");
+
     private AesGcmMode() {
       super((byte) 1);
     }
 
+    @Override
+    public int getKeyStreamBlockLength() {
+      return 16;
+    }
+
+    @Override
+    public int decryptPart(
+        ByteBuffer cipherText, byte[] key, byte[] nonce, long block, ByteBuffer plainText)
+        throws CeffCryptoException {
+      try {
+        this.validateKey(key);
+        // with a 96 bit nonce the counter block J0 is nonce || 1 and the plain text starts with
+        // the counter 2 (NIST SP 800-38D, 7.1)
+        final byte[] counter = Arrays.copyOf(nonce, 16);
+        ByteBuffer.wrap(counter).putInt(IV_LEN, Math.toIntExact(block + 2));
+        final CeffCipherCache.Entry entry = this.partCiphers.get(Cipher.DECRYPT_MODE, key);
+        entry.cipher.init(Cipher.DECRYPT_MODE, entry.keySpec(), new IvParameterSpec(counter));
+        return entry.cipher.doFinal(cipherText, plainText);
+      } catch (final Exception e) {
+        this.partCiphers.invalidate(Cipher.DECRYPT_MODE, key);
+        throw new CeffCryptoException("decryption failed", e, this);
+      }
+    }
+
     @Override
     public int getTagLength() {
       return TAG_LEN / 8;
@@ -169,15 +287,22 @@ public abstract class CeffMode {
     public byte[] encrypt(ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
       try {
-        this.validateKey(key);
-        final Cipher encipher = Cipher.getInstance(ALGO);
-        encipher.init(
-            Cipher.ENCRYPT_MODE,
-            new SecretKeySpec(key, "AES"),
-            new GCMParameterSpec(TAG_LEN, nonce));
-        encipher.updateAAD(aad);
-        return encipher.doFinal(CeffUtils.toArray(plainText));
+        return this.init(Cipher.ENCRYPT_MODE, aad, key, nonce)
+            .doFinal(CeffUtils.toArray(plainText));
+      } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.ENCRYPT_MODE, key);
+        throw new CeffCryptoException("encryption failed", e, this);
+      }
+    }
+
+    @Override
+    public int encrypt(
+        ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer cipherText)
+        throws CeffCryptoException {
+      try {
+        return this.init(Cipher.ENCRYPT_MODE, aad, key, nonce).doFinal(plainText, cipherText);
       } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.ENCRYPT_MODE, key);
         throw new CeffCryptoException("encryption failed", e, this);
       }
     }
@@ -186,19 +311,36 @@ public abstract class CeffMode {
     public byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
       try {
-        this.validateKey(key);
-        final Cipher encipher = Cipher.getInstance(ALGO);
-        encipher.init(
-            Cipher.DECRYPT_MODE,
-            new SecretKeySpec(key, "AES"),
-            new GCMParameterSpec(TAG_LEN, nonce));
-        encipher.updateAAD(aad);
-        return encipher.doFinal(CeffUtils.toArray(cipherText));
+        return this.init(Cipher.DECRYPT_MODE, aad, key, nonce)
+            .doFinal(CeffUtils.toArray(cipherText));
       } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.DECRYPT_MODE, key);
         throw new CeffCryptoException("decryption failed", e, this);
       }
     }
 
+    @Override
+    public int decrypt(
+        ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer plainText)
+        throws CeffCryptoException {
+      try {
+        return this.init(Cipher.DECRYPT_MODE, aad, key, nonce).doFinal(cipherText, plainText);
+      } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.DECRYPT_MODE, key);
+        throw new CeffCryptoException("decryption failed", e, this);
+      }
+    }
+
+    private Cipher init(int opmode, ByteBuffer aad, byte[] key, byte[] nonce)
+        throws GeneralSecurityException {
+      this.validateKey(key);
+      final CeffCipherCache.Entry entry = this.ciphers.get(opmode, key);
+      final Cipher cipher = entry.cipher;
+      cipher.init(opmode, entry.keySpec(), new GCMParameterSpec(TAG_LEN, nonce));
+      cipher.updateAAD(aad);
+      return cipher;
+    }
+
     @Override
     public boolean isSupported() {
       return true;
@@ -210,10 +352,50 @@ public abstract class CeffMode {
     private static final int IV_LEN = 12; // 12 bytes
     static final String ALGO = "ChaCha20-Poly1305";
 
+    private final CeffCipherCache ciphers = new CeffCipherCache(ALGO, "ChaCha20");
+    private final CeffCipherCache partCiphers = new CeffCipherCache("ChaCha20", "ChaCha20");
+
     private ChaCha20Poly1305Mode() {
       super((byte) 2);
     }
 
+    @Override
+    public int getKeyStreamBlockLength() {
+      return 64;
+    }
+
+    @Override
+    public int decryptPart(
+        ByteBuffer cipherText, byte[] key, byte[] nonce, long block, ByteBuffer plainText)
+        throws CeffCryptoException {
+      if (!Constants.JRE_IS_MINIMUM_JAVA11) {
+        throw new CeffCryptoException(ALGO + " only available for Java 11 and above", this);
+      }
+
+      try {
+        this.validateKey(key);
+        final CeffCipherCache.Entry entry = this.partCiphers.get(Cipher.DECRYPT_MODE, key);
+        final Cipher cipher = entry.cipher;
+        if (entry.reusesNonce(nonce)) {
+          // the JDK refuses to re-init with the same key and nonce (regardless of the counter)
+          final byte[] otherNonce = nonce.clone();
+          otherNonce[0] ^= 1;
+          cipher.init(
+              Cipher.DECRYPT_MODE, entry.keySpec(), ChaCha20Parameters.create(otherNonce, 1));
+        }
+        // the block counter 0 derives the Poly1305 key, the plain text starts with the counter 1
+        // (RFC 8439, 2.8)
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            entry.keySpec(),
+            ChaCha20Parameters.create(nonce, Math.toIntExact(block + 1)));
+        return cipher.doFinal(cipherText, plainText);
+      } catch (final Exception e) {
+        this.partCiphers.invalidate(Cipher.DECRYPT_MODE, key);
+        throw new CeffCryptoException("decryption failed", e, this);
+      }
+    }
+
     @Override
     public int getTagLength() {
       return TAG_LEN;
@@ -234,19 +416,27 @@ public abstract class CeffMode {
     @Override
     public byte[] encrypt(ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
-
-      if (!Constants.JRE_IS_MINIMUM_JAVA11) {
-        throw new CeffCryptoException(ALGO + " only available for Java 11 and above", this);
+      try {
+        return this.init(Cipher.ENCRYPT_MODE, aad, key, nonce)
+            .doFinal(CeffUtils.toArray(plainText));
+      } catch (final CeffCryptoException e) {
+        throw e;
+      } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.ENCRYPT_MODE, key);
+        throw new CeffCryptoException("encryption failed", e, this);
       }
+    }
 
+    @Override
+    public int encrypt(
+        ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer cipherText)
+        throws CeffCryptoException {
       try {
-        this.validateKey(key);
-        final Cipher encipher = Cipher.getInstance(ALGO);
-        encipher.init(
-            Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
-        encipher.updateAAD(aad);
-        return encipher.doFinal(CeffUtils.toArray(plainText));
+        return this.init(Cipher.ENCRYPT_MODE, aad, key, nonce).doFinal(plainText, cipherText);
+      } catch (final CeffCryptoException e) {
+        throw e;
       } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.ENCRYPT_MODE, key);
         throw new CeffCryptoException("encryption failed", e, this);
       }
     }
@@ -254,29 +444,94 @@ public abstract class CeffMode {
     @Override
     public byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
         throws CeffCryptoException {
-
-      if (!Constants.JRE_IS_MINIMUM_JAVA11) {
-        throw new CeffCryptoException(ALGO + " only available for Java 11 and above", this);
+      try {
+        return this.init(Cipher.DECRYPT_MODE, aad, key, nonce)
+            .doFinal(CeffUtils.toArray(cipherText));
+      } catch (final CeffCryptoException e) {
+        throw e;
+      } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.DECRYPT_MODE, key);
+        throw new CeffCryptoException("decryption failed", e, this);
       }
+    }
 
+    @Override
+    public int decrypt(
+        ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer plainText)
+        throws CeffCryptoException {
       try {
-        this.validateKey(key);
-        final Cipher encipher = Cipher.getInstance(ALGO);
-        encipher.init(
-            Cipher.DECRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
-        encipher.updateAAD(aad);
-        return encipher.doFinal(CeffUtils.toArray(cipherText));
+        return this.init(Cipher.DECRYPT_MODE, aad, key, nonce).doFinal(cipherText, plainText);
+      } catch (final CeffCryptoException e) {
+        throw e;
       } catch (final Exception e) {
+        this.ciphers.invalidate(Cipher.DECRYPT_MODE, key);
         throw new CeffCryptoException("decryption failed", e, this);
       }
     }
 
+    private Cipher init(int opmode, ByteBuffer aad, byte[] key, byte[] nonce)
+        throws GeneralSecurityException, CeffCryptoException {
+
+      if (!Constants.JRE_IS_MINIMUM_JAVA11) {
+        throw new CeffCryptoException(ALGO + " only available for Java 11 and above", this);
+      }
+
+      this.validateKey(key);
+      final CeffCipherCache.Entry entry = this.ciphers.get(opmode, key);
+      final Cipher cipher = entry.cipher;
+      if (opmode == Cipher.DECRYPT_MODE && entry.reusesNonce(nonce)) {
+        // the JDK refuses to re-init with the same key and nonce (also for decryption)
+        // so we need an intermediate init with another nonce
+        final byte[] otherNonce = nonce.clone();
+        otherNonce[0] ^= 1;
+        cipher.init(opmode, entry.keySpec(), new IvParameterSpec(otherNonce));
+      }
+      cipher.init(opmode, entry.keySpec(), new IvParameterSpec(nonce));
+      cipher.updateAAD(aad);
+      return cipher;
+    }
+
     @Override
     public boolean isSupported() {
       return Constants.JRE_IS_MINIMUM_JAVA11;
     }
   }
 
+  /**
+   * Creates {@code javax.crypto.spec.ChaCha20ParameterSpec} instances reflectively, the class is
+   * only available for Java 11 and above and the sources are compiled for Java 8. Loaded on the
+   * first partial decryption, which checks {@link Constants#JRE_IS_MINIMUM_JAVA11} before.
+   */
+  private static final class ChaCha20Parameters {
+    private static final Constructor<? extends AlgorithmParameterSpec> CONSTRUCTOR;
+
+    static {
+      try {
+        CONSTRUCTOR =
+            Class.forName("javax.crypto.spec.ChaCha20ParameterSpec")
+                .asSubclass(AlgorithmParameterSpec.class)
+                .getConstructor(byte[].class, int.class);
+      } catch (final ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private static AlgorithmParameterSpec create(byte[] nonce, int counter)
+        throws GeneralSecurityException {
+      try {
+        return CONSTRUCTOR.newInstance(nonce, counter);
+      } catch (final InvocationTargetException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          // e.g. a nonce with the wrong length
+          throw (RuntimeException) e.getCause();
+        }
+        throw new GeneralSecurityException(e.getCause());
+      } catch (final ReflectiveOperationException e) {
+        throw new GeneralSecurityException(e);
+      }
+    }
+  }
+
   private static final class NullMode extends CeffMode {
 
     private NullMode() {
@@ -312,12 +567,53 @@ public abstract class CeffMode {
       return CeffUtils.toArray(cipherText);
     }
 
+    @Override
+    public int encrypt(
+        ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer cipherText) {
+      final int length = plainText.remaining();
+      cipherText.put(plainText);
+      return length;
+    }
+
+    @Override
+    public int decrypt(
+        ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce, ByteBuffer plainText) {
+      final int length = cipherText.remaining();
+      plainText.put(cipherText);
+      return length;
+    }
+
+    @Override
+    public int getKeyStreamBlockLength() {
+      return 1;
+    }
+
+    @Override
+    public int decryptPart(
+        ByteBuffer cipherText, byte[] key, byte[] nonce, long block, ByteBuffer plainText) {
+      final int length = cipherText.remaining();
+      plainText.put(cipherText);
+      return length;
+    }
+
     @Override
     public boolean isSupported() {
       return true;
     }
   }
 
+  /** @return The registered modes which are supported on this platform (without the null mode) */
+  static List<CeffMode> supportedModes() {
+    final List<CeffMode> supported = new ArrayList<>();
+    for (final CeffMode mode : modes.values()) {
+      if (mode != NULL_MODE && mode.isSupported()) {
+        supported.add(mode);
+      }
+    }
+    supported.sort(Comparator.comparingInt(CeffMode::getModeByte));
+    return supported;
+  }
+
   static CeffMode getByModeByte(byte mode) throws CeffCryptoException {
     final CeffMode result = modes.get(mode);
     if (result == null) {
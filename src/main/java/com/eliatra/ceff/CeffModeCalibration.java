@@ -0,0 +1,289 @@
+/* 
+ * Copyright (C) 2021 Excelerate Technology Ltd. T/A Eliatra - All Rights Reserved
+ * Unauthorized copying, usage or modification of this file in its source or binary form, 
+ * via any medium is prohibited.
+ * 
+ * https://eliatra.com
+ */
+package com.eliatra.ceff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encryption and decryption throughput of all registered {@link CeffMode}s which are
+ * supported on this platform and picks the fastest one, e.g. once at startup:
+ *
+ * <pre>
+ * CeffModeCalibration calibration = CeffModeCalibration.run(64 * 1024, 500);
+ * log.info(calibration);
+ * new CeffDirectory(delegate, key, 64 * 1024, calibration.getFastestMode());
+ * </pre>
+ *
+ * Which mode is fastest depends on the CPU (AES-NI and CLMUL intrinsics make AES-GCM fast) and on
+ * the JCA provider the modes get their ciphers from. A mode backed by another provider can be
+ * registered with {@link CeffMode#registerMode(CeffMode)} and is then measured as well.
+ *
+ * <p>Every mode is {@link #warmUp(CeffMode) warmed up} first, so the JIT has compiled its cipher
+ * before it is measured and also before the first query. Then every mode is measured in several
+ * rounds with a calibrated number of chunks per round and the best round counts.
+ */
+public final class CeffModeCalibration {
+
+  private static final int ROUNDS = 5;
+  private static final int WARM_UP_LENGTH = 512;
+  private static final int WARM_UP_INVOCATIONS = 20_000;
+
+  private final int chunkLength;
+  private final List<Result> results;
+
+  private CeffModeCalibration(int chunkLength, List<Result> results) {
+    this.chunkLength = chunkLength;
+    this.results = Collections.unmodifiableList(results);
+  }
+
+  /**
+   * Warm up and measure all supported modes
+   *
+   * @param chunkLength The chunk length the files will be written with
+   * @param millis The approximate time the measurement takes (without the warm-up)
+   * @return The results
+   * @throws IllegalArgumentException if the chunk length is invalid or millis is &lt;= 0
+   * @throws CeffCryptoException if a mode fails to encrypt or decrypt
+   */
+  public static CeffModeCalibration run(int chunkLength, long millis) throws CeffCryptoException {
+    CeffUtils.validateChunkLength(chunkLength);
+    if (millis <= 0) {
+      throw new IllegalArgumentException("millis must be > 0");
+    }
+
+    final List<Measurement> measurements = new ArrayList<>();
+    for (final CeffMode mode : CeffMode.supportedModes()) {
+      warmUp(mode);
+      measurements.add(new Measurement(mode, chunkLength));
+    }
+
+    // every round measures encryption and decryption of every mode
+    final long roundNanos =
+        Math.max(1, TimeUnit.MILLISECONDS.toNanos(millis) / (ROUNDS * 2L * measurements.size()));
+
+    for (final Measurement measurement : measurements) {
+      measurement.calibrate(roundNanos);
+    }
+
+    // the modes take turns, so that a hiccup of the machine does not hit only one of them
+    for (int round = 0; round < ROUNDS; round++) {
+      for (final Measurement measurement : measurements) {
+        measurement.round(round > 0);
+      }
+    }
+
+    final List<Result> results = new ArrayList<>();
+    for (final Measurement measurement : measurements) {
+      results.add(
+          new Result(
+              measurement.mode,
+              chunkLength,
+              measurement.bestEncryptNanos,
+              measurement.bestDecryptNanos));
+    }
+    results.sort(Comparator.comparingDouble(r -> r.encryptNanos + r.decryptNanos));
+    return new CeffModeCalibration(chunkLength, results);
+  }
+
+  /**
+   * Encrypt and decrypt small chunks with the mode until the JIT has compiled its cipher (the
+   * intrinsics for AES and GHASH are only used by compiled code and the JIT compiles after a number
+   * of invocations, not after an amount of bytes). Without a warm-up the first chunks are encrypted
+   * and decrypted many times slower.
+   *
+   * @param mode The mode
+   * @throws CeffCryptoException if the mode fails to encrypt or decrypt
+   */
+  public static void warmUp(CeffMode mode) throws CeffCryptoException {
+    final Measurement measurement = new Measurement(mode, WARM_UP_LENGTH);
+    measurement.encrypt(WARM_UP_INVOCATIONS);
+    measurement.decrypt(WARM_UP_INVOCATIONS);
+  }
+
+  /** @return The fastest mode */
+  public CeffMode getFastestMode() {
+    return this.results.get(0).mode;
+  }
+
+  /** @return The results of all measured modes, the fastest first */
+  public List<Result> getResults() {
+    return this.results;
+  }
+
+  /** @return The chunk length the modes were measured with */
+  public int getChunkLength() {
+    return this.chunkLength;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("CEFF mode calibration with a chunk length of ")
+        .append(this.chunkLength)
+        .append(", fastest mode ")
+        .append(this.getFastestMode().getClass().getSimpleName());
+
+    for (final Result result : this.results) {
+      sb.append(System.lineSeparator()).append("  ").append(result);
+    }
+
+    return sb.toString();
+  }
+
+  /** The measured throughput of one mode */
+  public static final class Result {
+    private final CeffMode mode;
+    private final int chunkLength;
+    private final double encryptNanos;
+    private final double decryptNanos;
+
+    private Result(CeffMode mode, int chunkLength, double encryptNanos, double decryptNanos) {
+      this.mode = mode;
+      this.chunkLength = chunkLength;
+      this.encryptNanos = encryptNanos;
+      this.decryptNanos = decryptNanos;
+    }
+
+    public CeffMode getMode() {
+      return this.mode;
+    }
+
+    /** @return The nanoseconds to encrypt one chunk */
+    public double getEncryptNanos() {
+      return this.encryptNanos;
+    }
+
+    /** @return The nanoseconds to decrypt (and verify) one chunk */
+    public double getDecryptNanos() {
+      return this.decryptNanos;
+    }
+
+    /** @return The encryption throughput in megabytes per second */
+    public double getEncryptMbPerSecond() {
+      return mbPerSecond(this.chunkLength, this.encryptNanos);
+    }
+
+    /** @return The decryption throughput in megabytes per second */
+    public double getDecryptMbPerSecond() {
+      return mbPerSecond(this.chunkLength, this.decryptNanos);
+    }
+
+    private static double mbPerSecond(int bytes, double nanos) {
+      return bytes / (1024d * 1024d) / (nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ROOT,
+          "%s: encrypt %.1f mb/s, decrypt %.1f mb/s",
+          this.mode.getClass().getSimpleName(),
+          this.getEncryptMbPerSecond(),
+          this.getDecryptMbPerSecond());
+    }
+  }
+
+  /** The buffers and the best times of one mode */
+  private static final class Measurement {
+    private final CeffMode mode;
+    private final byte[] key = new byte[32];
+    private final ByteBuffer aad = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+    private final ByteBuffer plainText;
+    // two nonces in turn: some providers refuse a re-init with the last key and nonce
+    private final byte[][] nonces = new byte[2][];
+    private final ByteBuffer[] cipherTexts = new ByteBuffer[2];
+    private int iterations = 1;
+    private int encryptions;
+    private int decryptions;
+    private double bestEncryptNanos = Double.MAX_VALUE;
+    private double bestDecryptNanos = Double.MAX_VALUE;
+
+    private Measurement(CeffMode mode, int chunkLength) throws CeffCryptoException {
+      this.mode = mode;
+      final Random random = new Random(chunkLength);
+      random.nextBytes(this.key);
+      this.plainText = ByteBuffer.allocate(chunkLength);
+      random.nextBytes(this.plainText.array());
+
+      for (int i = 0; i < 2; i++) {
+        this.nonces[i] = mode.randomNonce();
+        this.encryptions++;
+        this.cipherTexts[i] = ByteBuffer.allocate(chunkLength + mode.getTagLength());
+        this.plainText.clear();
+        this.aad.clear();
+        mode.encrypt(this.plainText, this.aad, this.key, this.nonces[i], this.cipherTexts[i]);
+        this.cipherTexts[i].flip();
+      }
+    }
+
+    /** Double the iterations until encryption and decryption take about the round time each */
+    private void calibrate(long roundNanos) throws CeffCryptoException {
+      while (this.iterations < (1 << 20)) {
+        final long nanos = Math.max(this.encrypt(this.iterations), this.decrypt(this.iterations));
+        if (nanos >= roundNanos) {
+          break;
+        }
+        this.iterations =
+            (int)
+                Math.min(
+                    1 << 20,
+                    Math.max(
+                        this.iterations * 2L, this.iterations * roundNanos / Math.max(1, nanos)));
+      }
+    }
+
+    private void round(boolean record) throws CeffCryptoException {
+      final double encryptNanos = this.encrypt(this.iterations) / (double) this.iterations;
+      final double decryptNanos = this.decrypt(this.iterations) / (double) this.iterations;
+
+      if (record) {
+        this.bestEncryptNanos = Math.min(this.bestEncryptNanos, encryptNanos);
+        this.bestDecryptNanos = Math.min(this.bestDecryptNanos, decryptNanos);
+      }
+    }
+
+    /** @return The nanoseconds to encrypt the chunk n times */
+    private long encrypt(int n) throws CeffCryptoException {
+      final ByteBuffer cipherText = ByteBuffer.allocate(this.cipherTexts[0].capacity());
+      final long start = System.nanoTime();
+
+      for (int i = 0; i < n; i++) {
+        this.plainText.clear();
+        this.aad.clear();
+        cipherText.clear();
+        this.mode.encrypt(
+            this.plainText, this.aad, this.key, this.nonces[this.encryptions++ & 1], cipherText);
+      }
+
+      return System.nanoTime() - start;
+    }
+
+    /** @return The nanoseconds to decrypt the chunk n times */
+    private long decrypt(int n) throws CeffCryptoException {
+      final long start = System.nanoTime();
+
+      for (int i = 0; i < n; i++) {
+        final int next = this.decryptions++ & 1;
+        final ByteBuffer cipherText = this.cipherTexts[next];
+        cipherText.rewind();
+        this.plainText.clear();
+        this.aad.clear();
+        this.mode.decrypt(cipherText, this.aad, this.key, this.nonces[next], this.plainText);
+      }
+
+      return System.nanoTime() - start;
+    }
+  }
+}
@@ -8,20 +8,58 @@
 package com.eliatra.ceff;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Objects;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.apache.lucene.util.ArrayUtil;
 
 /** Constants and static utility methods */
 public final class CeffUtils {
 
-  /** The CEFF magic number */
+  /** The CEFF magic number of format version 1 */
   public static final int CEFF_MAGIC = 846197364;
 
+  /** The CEFF magic number of format version 2 */
+  public static final int CEFF_MAGIC_V2 = CEFF_MAGIC + 1;
+
+  /** The CEFF magic number of format version 3 */
+  public static final int CEFF_MAGIC_V3 = CEFF_MAGIC + 2;
+
+  /**
+   * Format version 1: the chunk aad contains a random chunk id, the footer contains a SHA-512
+   * signature of all chunk aads which is verified when a file is opened.
+   */
+  public static final int FORMAT_VERSION_1 = 1;
+
+  /**
+   * Format version 2: the footer contains a random file id and the chunk aad is the chunk number
+   * and the file id. Every chunk is verified when it is read, opening a file only reads the footer.
+   */
+  public static final int FORMAT_VERSION_2 = 2;
+
+  /**
+   * Format version 3: like version 2, but the chunks are encrypted with a per file subkey which is
+   * derived from the key with HKDF-SHA256 and a random salt. The chunk nonces are the chunk
+   * numbers, so the only random values of a file are its id, its salt and the footer nonce. The
+   * footer contains the file id and the salt and is encrypted with the key. Requires a mode with a
+   * nonce length of at least 8 bytes (or no nonce at all).
+   */
+  public static final int FORMAT_VERSION_3 = 3;
+
+  /** The format version which is written by default */
+  public static final int CURRENT_FORMAT_VERSION = FORMAT_VERSION_2;
+
   /** Maximum size of a chunk (in bytes) */
   public static final int CHUNK_SIZE_MAX = 1_073_741_824;
 
-  /** Minimum size of a chunk (in bytes) */
-  public static final int CHUNK_SIZE_MIN = 16 * 1024;
+  /**
+   * Minimum size of a chunk (in bytes). Chunks smaller than 16kb are meant for random access files
+   * (see {@link CeffChunkLengthStrategy}), every chunk adds the nonce, aad and tag to the file.
+   * Older versions of this library can not read files with chunks smaller than 16kb.
+   */
+  public static final int CHUNK_SIZE_MIN = 1024;
 
   /** Length of the CEFF magic number in bytes */
   public static final int MAGIC_LENGTH = Integer.BYTES;
@@ -41,6 +79,11 @@ public final class CeffUtils {
   /** The name of the SHA 512 algorithm */
   public static final String SHA512_DIGEST_ALGO = "SHA-512";
 
+  /** Length of the random salt of a file in format version 3 */
+  public static final int SALT_LENGTH = 32;
+
+  private static final String HMAC_SHA256_ALGO = "HmacSHA256";
+
   private CeffUtils() {
     super();
   }
@@ -97,10 +140,115 @@ public final class CeffUtils {
    * @throws IllegalArgumentException if the header is not valid
    */
   public static void validateMagicHeaderBytes(int magic) {
-    if (magic != CEFF_MAGIC) {
+    formatVersion(magic);
+  }
+
+  /**
+   * @param magic The magic of the file header
+   * @return The format version
+   * @throws IllegalArgumentException if the header is not valid
+   */
+  public static int formatVersion(int magic) {
+    switch (magic) {
+      case CEFF_MAGIC:
+        return FORMAT_VERSION_1;
+      case CEFF_MAGIC_V2:
+        return FORMAT_VERSION_2;
+      case CEFF_MAGIC_V3:
+        return FORMAT_VERSION_3;
+      default:
+        throw new IllegalArgumentException(
+            "Invalid magic bytes, is: "
+                + magic
+                + ", expected: "
+                + CEFF_MAGIC
+                + ", "
+                + CEFF_MAGIC_V2
+                + " or "
+                + CEFF_MAGIC_V3);
+    }
+  }
+
+  /**
+   * @param formatVersion The format version
+   * @return The magic of the file header
+   * @throws IllegalArgumentException if the format version is not supported
+   */
+  public static int magic(int formatVersion) {
+    switch (formatVersion) {
+      case FORMAT_VERSION_1:
+        return CEFF_MAGIC;
+      case FORMAT_VERSION_2:
+        return CEFF_MAGIC_V2;
+      case FORMAT_VERSION_3:
+        return CEFF_MAGIC_V3;
+      default:
+        throw new IllegalArgumentException("Unsupported format version " + formatVersion);
+    }
+  }
+
+  /**
+   * Derive the subkey of a file (format version 3) with HKDF-SHA256 (RFC 5869)
+   *
+   * @param key The key of the directory, the input keying material
+   * @param salt The random salt of the file
+   * @param mode The mode, bound to the subkey
+   * @return A subkey with the same length as the key
+   */
+  static byte[] deriveFileKey(byte[] key, byte[] salt, CeffMode mode) {
+    try {
+      // extract
+      final Mac mac = Mac.getInstance(HMAC_SHA256_ALGO);
+      mac.init(new SecretKeySpec(salt, HMAC_SHA256_ALGO));
+      final byte[] prk = mac.doFinal(key);
+
+      // expand
+      final byte[] info = "ceff v3 chunk key".getBytes(StandardCharsets.US_ASCII);
+      mac.init(new SecretKeySpec(prk, HMAC_SHA256_ALGO));
+      final byte[] fileKey = new byte[key.length];
+      byte[] block = new byte[0];
+
+      for (int offset = 0, i = 1; offset < fileKey.length; i++) {
+        mac.update(block);
+        mac.update(info);
+        mac.update(mode.getModeByte());
+        mac.update((byte) i);
+        block = mac.doFinal();
+        final int length = Math.min(block.length, fileKey.length - offset);
+        System.arraycopy(block, 0, fileKey, offset, length);
+        offset += length;
+      }
+
+      return fileKey;
+    } catch (final GeneralSecurityException e) {
+      // can not happen, HmacSHA256 is always available
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The nonce of a chunk in format version 3: zeros followed by the big endian chunk number. Unique
+   * within a file and the subkey is unique for every file.
+   *
+   * @param mode The mode
+   * @param chunk The absolute chunk number
+   * @return The nonce
+   * @throws IllegalArgumentException if the nonce length of the mode is &gt; 0 and &lt; 8
+   */
+  static byte[] counterNonce(CeffMode mode, long chunk) {
+    final byte[] nonce = new byte[mode.getNonceLength()];
+
+    if (nonce.length == 0) {
+      return nonce;
+    }
+
+    if (nonce.length < Long.BYTES) {
       throw new IllegalArgumentException(
-          "Invalid magic bytes, is: " + magic + ", expected: " + CEFF_MAGIC);
+          "Format version 3 requires a nonce length of at least 8 bytes");
     }
+
+    ByteBuffer.wrap(nonce).putLong(nonce.length - Long.BYTES, chunk);
+    return nonce;
   }
 
   /**
@@ -185,7 +333,8 @@ public final class CeffUtils {
   public static long calculateNumberOfChunks(
       long encryptedFileLength, int chunkLength, CeffMode mode) {
     final int additionalBytesLen = CeffUtils.HEADER_LENGTH + CeffUtils.footerLength(mode);
-    return ((encryptedFileLength - additionalBytesLen)
+    // there is always at least one chunk and the last chunk can be a full one
+    return ((encryptedFileLength - additionalBytesLen - 1)
             / (CeffUtils.cryptoLength(mode) + chunkLength))
         + 1;
   }
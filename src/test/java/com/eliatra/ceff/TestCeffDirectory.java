@@ -8,15 +8,36 @@
 package com.eliatra.ceff;
 
 import com.carrotsearch.randomizedtesting.RandomizedTest;
+import com.carrotsearch.randomizedtesting.ThreadFilter;
 import com.carrotsearch.randomizedtesting.annotations.ParametersFactory;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.crypto.Cipher;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.apache.lucene.analysis.MockAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -34,22 +55,41 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.BaseDirectoryTestCase;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.store.TrackingDirectoryWrapper;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.English;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.QuickPatchThreadsFilter;
 import org.apache.lucene.util.TestUtil;
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+@ThreadLeakFilters(
+    defaultFilters = true,
+    filters = {QuickPatchThreadsFilter.class, TestCeffDirectory.JfrThreadsFilter.class})
 public class TestCeffDirectory extends BaseDirectoryTestCase {
 
   protected static final byte[] DEFAULT_KEY =
@@ -64,10 +104,26 @@ public class TestCeffDirectory extends BaseDirectoryTestCase {
         1, 1, 1, 1
       };
 
+  protected static ExecutorService executor;
+
   protected final byte[] key;
   protected int chunkLength;
   protected final CeffMode mode;
 
+  @BeforeClass
+  public static void beforeClass() {
+    executor =
+        Executors.newFixedThreadPool(
+            TestUtil.nextInt(random(), 1, 4), new NamedThreadFactory("ceff"));
+  }
+
+  @AfterClass
+  public static void afterClass() throws InterruptedException {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    executor = null;
+  }
+
   public TestCeffDirectory(byte[] key, int chunkLength, CeffMode mode, String name) {
     this.key = key;
     this.chunkLength = chunkLength;
@@ -76,13 +132,45 @@ public class TestCeffDirectory extends BaseDirectoryTestCase {
 
   @Override
   protected Directory getDirectory(Path path) throws IOException {
-    return new CeffDirectory(
-        new NIOFSDirectory(path),
-        this.key,
-        this.chunkLength <= 0
-            ? this.chunkLength = random().ints(1, 16 * 1024, 400000).findFirst().getAsInt()
-            : this.chunkLength,
-        this.mode);
+    final CeffDirectory dir =
+        new CeffDirectory(
+            new NIOFSDirectory(path),
+            this.key,
+            this.chunkLength <= 0
+                ? this.chunkLength =
+                    random().ints(1, CeffUtils.CHUNK_SIZE_MIN, 400000).findFirst().getAsInt()
+                : this.chunkLength,
+            this.mode);
+
+    dir.setFormatVersion(
+        TestUtil.nextInt(random(), CeffUtils.FORMAT_VERSION_1, CeffUtils.FORMAT_VERSION_3));
+
+    if (random().nextBoolean()) {
+      // small budgets also exercise the eviction
+      dir.setChunkCache(
+          new CeffChunkCache(
+              TestUtil.nextLong(random(), 1, 32 * 1024 * 1024), random().nextBoolean()));
+    }
+
+    if (random().nextBoolean()) {
+      dir.setEncryptionExecutor(executor, TestUtil.nextInt(random(), 1, 8));
+    }
+
+    if (random().nextBoolean()) {
+      dir.setReadahead(executor, TestUtil.nextInt(random(), 1, 8));
+    }
+
+    dir.setPositionalReads(random().nextBoolean());
+    dir.setPartialDecryption(random().nextBoolean());
+
+    if (random().nextBoolean()) {
+      // small budgets also exercise the unpooled allocation
+      dir.setBufferPool(
+          new CeffBufferPool(
+              TestUtil.nextLong(random(), 1, 32 * 1024 * 1024), random().nextBoolean()));
+    }
+
+    return dir;
   }
 
   protected Directory getDirectoryOtherKey(Path path) throws IOException {
@@ -90,7 +178,8 @@ public class TestCeffDirectory extends BaseDirectoryTestCase {
         new NIOFSDirectory(path),
         OTHER_KEY,
         this.chunkLength <= 0
-            ? this.chunkLength = random().ints(1, 16 * 1024, 400000).findFirst().getAsInt()
+            ? this.chunkLength =
+                random().ints(1, CeffUtils.CHUNK_SIZE_MIN, 400000).findFirst().getAsInt()
             : this.chunkLength,
         this.mode);
   }
@@ -410,6 +499,1459 @@ public class TestCeffDirectory extends BaseDirectoryTestCase {
     }
   }
 
+  public void testChunkCache() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testChunkCache"))) {
+      final CeffChunkCache cache = new CeffChunkCache(64L * 1024 * 1024);
+      dir.setChunkCache(cache);
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 5 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      final long chunks = ((bytes.length - 1) / this.chunkLength) + 1;
+      final byte[] read = new byte[bytes.length];
+
+      // merges neither admit chunks nor are they counted as hits
+      try (IndexInput in = dir.openInput("test", IOContext.READONCE)) {
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+      }
+
+      assertEquals(0, cache.getHitCount());
+      assertEquals(0, cache.getSizeInBytes());
+
+      try (IndexInput in = dir.openInput("test", IOContext.READ)) {
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+        assertEquals(bytes.length, cache.getSizeInBytes());
+
+        // all chunks are decrypted only once, clones and slices share them
+        final IndexInput clone = in.clone();
+        clone.seek(0);
+        clone.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+
+        final int offset = random().nextInt(bytes.length);
+        final IndexInput slice = in.slice("slice", offset, bytes.length - offset);
+        slice.readBytes(read, 0, bytes.length - offset);
+        assertArrayEquals(
+            ArrayUtil.copyOfSubArray(bytes, offset, bytes.length),
+            ArrayUtil.copyOfSubArray(read, 0, bytes.length - offset));
+      }
+
+      assertEquals(chunks * 2, cache.getMissCount());
+      // the clone starts with the current (last) chunk of the input
+      assertTrue(cache.getHitCount() >= chunks - 1);
+      assertEquals(0, cache.getEvictionCount());
+
+      cache.clear();
+      assertEquals(0, cache.getSizeInBytes());
+    }
+  }
+
+  public void testChunkCacheEviction() throws Exception {
+    // one chunk per stripe
+    final CeffChunkCache cache = new CeffChunkCache(16 * 1024 * 16);
+    final byte[] plainText = new byte[16 * 1024];
+    final CeffChunkCache.FileKey file = new CeffChunkCache.FileKey("test", random().nextLong());
+    final IOContext context = IOContext.READ;
+
+    for (int i = 0; i < 1000; i++) {
+      final ByteBuffer chunk = cache.allocate(plainText.length);
+      chunk.put(plainText).flip();
+      if (cache.get(file, i, context) == null) {
+        cache.put(file, i, context, chunk);
+      }
+      assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+
+    assertTrue(cache.getEvictionCount() > 0);
+    assertEquals(1000, cache.getMissCount());
+
+    // hot chunks survive a merge (or any other non admitted scan)
+    final ByteBuffer hot = cache.allocate(plainText.length);
+    hot.put(plainText).flip();
+    cache.put(file, -1, context, hot);
+    assertNotNull(cache.get(file, -1, context));
+
+    for (int i = 1000; i < 2000; i++) {
+      if (cache.get(file, i, IOContext.DEFAULT) == null) {
+        final ByteBuffer chunk = cache.allocate(plainText.length);
+        chunk.put(plainText).flip();
+        cache.put(file, i, IOContext.READONCE, chunk);
+      }
+    }
+
+    assertNotNull(cache.get(file, -1, context));
+  }
+
+  public void testBufferPool() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testBufferPool"))) {
+      final CeffBufferPool pool = new CeffBufferPool(64L * 1024 * 1024, random().nextBoolean());
+      dir.setBufferPool(pool);
+      // without a cache the chunks are decrypted into the own buffers
+      dir.setChunkCache(null);
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 100_000)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+        assertTrue(dir.ramBytesUsed() > 2 * this.chunkLength);
+        assertEquals(1, dir.getChildResources().size());
+      }
+
+      assertEquals(0, dir.ramBytesUsed());
+      assertEquals(pool.ramBytesUsed(), pool.getIdleBytes());
+
+      for (int i = 0; i < 3; i++) {
+        try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+          assertTrue(dir.ramBytesUsed() > 2 * this.chunkLength);
+          assertTrue(pool.getIdleBytes() < pool.ramBytesUsed());
+
+          final IndexInput clone = in.clone();
+          final byte[] read = new byte[bytes.length];
+          in.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+          clone.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+        }
+
+        assertEquals(0, dir.ramBytesUsed());
+        assertEquals(pool.ramBytesUsed(), pool.getIdleBytes());
+      }
+
+      // the read buffer (and the chunk buffer if it was not shared) is recycled
+      assertTrue(pool.getRecycleCount() >= 2);
+      assertEquals(0, pool.getUnpooledCount());
+    }
+  }
+
+  public void testBufferPoolBudget() throws Exception {
+    final CeffBufferPool pool = new CeffBufferPool(1000, random().nextBoolean());
+    final ByteBuffer pooled = pool.acquire(800);
+    assertEquals(800, pool.ramBytesUsed());
+    assertEquals(0, pool.getUnpooledBytes());
+
+    // beyond the budget the buffer is allocated outside of the pool but still counted
+    final ByteBuffer unpooled = pool.acquire(800);
+    assertEquals(1, pool.getUnpooledCount());
+    assertEquals(800, pool.getUnpooledBytes());
+    assertEquals(1600, pool.ramBytesUsed());
+
+    // released it is dropped, the pooled buffer is recycled
+    pool.release(unpooled);
+    assertEquals(0, pool.getUnpooledBytes());
+    pool.release(pooled);
+    assertEquals(800, pool.ramBytesUsed());
+    assertEquals(800, pool.getIdleBytes());
+    assertSame(pooled, pool.acquire(800));
+
+    // a detached buffer outside of the pool is not counted anymore either
+    pool.detach(pool.acquire(800));
+    assertEquals(0, pool.getUnpooledBytes());
+    assertEquals(800, pool.ramBytesUsed());
+
+    // the plain text is zeroed before the buffer is recycled
+    final byte[] bytes = new byte[800];
+    random().nextBytes(bytes);
+    pooled.clear();
+    pooled.put(bytes);
+    pool.release(pooled);
+    final ByteBuffer recycled = pool.acquire(800);
+    assertSame(pooled, recycled);
+    while (recycled.hasRemaining()) {
+      assertEquals(0, recycled.get());
+    }
+  }
+
+  public void testMetrics() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testMetrics"))) {
+      // every chunk read is decrypted by the reading thread
+      dir.setChunkCache(null);
+      dir.setReadahead(null, 0);
+
+      final CeffMetrics metrics = new CeffMetrics();
+      dir.setMetricsListener(metrics);
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 5 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("_0.doc", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      final long chunks = ((bytes.length - 1) / this.chunkLength) + 1;
+      final CeffMetrics.Stats written = metrics.getStats("doc", "DEFAULT");
+      assertEquals(chunks, written.getChunksEncrypted());
+      assertEquals(bytes.length, written.getBytesEncrypted());
+      assertTrue(written.getEncryptNanos() > 0);
+      assertEquals(0, written.getChunksDecrypted());
+
+      try (IndexInput in = dir.openInput("_0.doc", IOContext.READ)) {
+        final byte[] read = new byte[bytes.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+
+        final CeffMetrics.Stats stats = metrics.getStats("doc", "READ");
+        assertEquals(1, stats.getOpens());
+        assertTrue(stats.getOpenNanos() > 0);
+        assertEquals(chunks, stats.getChunksDecrypted());
+        assertEquals(bytes.length, stats.getBytesDecrypted());
+        assertEquals(0, stats.getChunksRedecrypted());
+
+        // seeking back to the first chunk decrypts it again
+        in.seek(0);
+        in.readByte();
+        assertEquals(chunks > 1 ? 1 : 0, stats.getChunksRedecrypted());
+
+        in.clone();
+        in.slice("slice", 0, bytes.length);
+        assertEquals(1, stats.getClones());
+        assertEquals(1, stats.getSlices());
+        assertEquals(0, stats.getChunksEncrypted());
+      }
+
+      assertEquals(2, metrics.getStats().size());
+      assertTrue(metrics.toString().contains("doc/READ"));
+
+      // no metrics are measured for files opened without a listener
+      dir.setMetricsListener(null);
+      metrics.clear();
+
+      try (IndexInput in = dir.openInput("_0.doc", IOContext.READ)) {
+        in.seek(bytes.length - 1);
+      }
+
+      assertTrue(metrics.getStats().isEmpty());
+    }
+  }
+
+  public void testJfrEvents() throws Exception {
+    // the tests run on java 11
+    assertTrue(CeffEvents.INSTANCE instanceof CeffJfrEvents);
+
+    final Path dump = createTempDir("testJfrEvents").resolve("events.jfr");
+    final byte[] bytes;
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testJfrEvents"));
+        Recording recording = new Recording()) {
+      bytes = new byte[TestUtil.nextInt(random(), 1, 100_000)];
+      random().nextBytes(bytes);
+
+      // every chunk read is decrypted by the reading thread
+      dir.setChunkCache(null);
+      dir.setReadahead(null, 0);
+
+      for (final String name : new String[] {"Open", "Slice", "ChunkDecrypt", "ChunkEncrypt"}) {
+        recording.enable("com.eliatra.ceff." + name).withoutThreshold();
+      }
+      recording.start();
+
+      try (IndexOutput out = dir.createOutput("_0.fdt", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("_0.fdt", IOContext.READ)) {
+        final byte[] read = new byte[bytes.length];
+        in.slice("slice", 0, bytes.length).readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+      }
+
+      recording.stop();
+      recording.dump(dump);
+    }
+
+    final long chunks = ((bytes.length - 1) / this.chunkLength) + 1;
+    final Map<String, Integer> counts = new HashMap<>();
+
+    for (final RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+      assertEquals("_0.fdt", event.getString("fileName"));
+      assertTrue(event.getLong("chunk") < chunks);
+      counts.merge(event.getEventType().getName(), 1, Integer::sum);
+    }
+
+    assertEquals(1, (int) counts.get("com.eliatra.ceff.Open"));
+    assertEquals(1, (int) counts.get("com.eliatra.ceff.Slice"));
+    assertEquals(chunks, (long) counts.get("com.eliatra.ceff.ChunkEncrypt"));
+    // the slice decrypts the chunks again, starting with the current chunk of the input
+    assertTrue(counts.get("com.eliatra.ceff.ChunkDecrypt") >= chunks);
+    // the close event is disabled by default
+    assertFalse(counts.containsKey("com.eliatra.ceff.Close"));
+  }
+
+  public void testEncryptionPolicy() throws Exception {
+    final Path path = createTempDir("testEncryptionPolicy");
+    final CeffMode otherMode =
+        this.mode == CeffMode.AES_GCM_MODE
+            ? CeffMode.CHACHA20_POLY1305_MODE
+            : CeffMode.AES_GCM_MODE;
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      dir.setEncryptionPolicy(
+          CeffEncryptionPolicy.byExtension(
+              this.mode, Collections.singletonMap("fdt", otherMode), Collections.singleton("si")));
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 2 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      for (final String name : new String[] {"_0.fdt", "_0.si", "_0.doc", "segments_1"}) {
+        try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+          out.writeBytes(bytes, bytes.length);
+        }
+
+        try (IndexInput in = dir.openInput(name, IOContext.READ)) {
+          final byte[] read = new byte[bytes.length];
+          in.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+        }
+      }
+
+      // the pass-through file is not encrypted, the others have the mode in their header
+      assertArrayEquals(bytes, Files.readAllBytes(path.resolve("_0.si")));
+      assertEquals(otherMode.getModeByte(), Files.readAllBytes(path.resolve("_0.fdt"))[4]);
+      assertEquals(this.mode.getModeByte(), Files.readAllBytes(path.resolve("_0.doc"))[4]);
+      assertEquals(this.mode.getModeByte(), Files.readAllBytes(path.resolve("segments_1"))[4]);
+
+      // without the policy the other mode is still detected, the pass-through file is not
+      dir.setEncryptionPolicy(null);
+
+      try (IndexInput in = dir.openInput("_0.fdt", IOContext.READ)) {
+        assertEquals(bytes.length, in.length());
+      }
+
+      expectThrows(
+          IllegalArgumentException.class, () -> dir.openInput("_0.si", IOContext.READ).close());
+    }
+
+    expectThrows(
+        IllegalArgumentException.class,
+        () ->
+            CeffEncryptionPolicy.byExtension(
+                this.mode, Collections.singletonMap("si", otherMode), Collections.singleton("si")));
+    expectThrows(
+        IllegalArgumentException.class,
+        () ->
+            CeffEncryptionPolicy.byExtension(
+                this.mode, Collections.emptyMap(), Collections.singleton(".si")));
+  }
+
+  public void testChunkLengthStrategy() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testChunkLengthStrategy"))) {
+      dir.setChunkLengthStrategy(
+          CeffChunkLengthStrategy.byExtension(
+              this.chunkLength, Collections.singletonMap("tip", CeffUtils.CHUNK_SIZE_MIN)));
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 2 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      for (final String name : new String[] {"_0.tip", "_0.fdt"}) {
+        try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+          out.writeBytes(bytes, bytes.length);
+        }
+
+        try (IndexInput in = dir.openInput(name, IOContext.READ)) {
+          final byte[] read = new byte[bytes.length];
+          in.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+        }
+      }
+
+      assertEquals(
+          bytes.length,
+          CeffUtils.calculatePlainFileLength(
+              dir.fileLength("_0.tip"), CeffUtils.CHUNK_SIZE_MIN, this.mode));
+      assertEquals(
+          bytes.length,
+          CeffUtils.calculatePlainFileLength(
+              dir.fileLength("_0.fdt"), this.chunkLength, this.mode));
+    }
+
+    expectThrows(
+        IllegalArgumentException.class,
+        () ->
+            CeffChunkLengthStrategy.byExtension(
+                this.chunkLength, Collections.singletonMap("tip", CeffUtils.CHUNK_SIZE_MIN - 1)));
+  }
+
+  public void testCompoundFormat() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testCompoundFormat"))) {
+      final CeffMetrics metrics = new CeffMetrics();
+      dir.setMetricsListener(metrics);
+
+      final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+      mergePolicy.setNoCFSRatio(1.0);
+      final int docs = TestUtil.nextInt(random(), 1, 500);
+
+      try (IndexWriter writer =
+          new IndexWriter(
+              dir,
+              new IndexWriterConfig(new MockAnalyzer(random()))
+                  .setCodec(new CeffCodec())
+                  .setUseCompoundFile(true)
+                  .setMergePolicy(mergePolicy))) {
+        for (int i = 0; i < docs; i++) {
+          final Document doc = new Document();
+          doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+          doc.add(new TextField("content", English.intToEnglish(i), Field.Store.NO));
+          doc.add(new NumericDocValuesField("number", i));
+          writer.addDocument(doc);
+        }
+      }
+
+      assertTrue(Arrays.stream(dir.listAll()).anyMatch(CeffCompoundFormat::isDataFile));
+      // the files were embedded without opening them (the flush itself reads norms and temp files)
+      for (final CeffMetrics.Stats stats : metrics.getStats()) {
+        assertTrue(
+            stats.toString(),
+            "tmp".equals(stats.getExtension()) || !"READONCE".equals(stats.getContext()));
+      }
+
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(docs, reader.numDocs());
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        final int i = random().nextInt(docs);
+        final ScoreDoc[] hits =
+            searcher.search(new TermQuery(new Term("id", Integer.toString(i))), 1).scoreDocs;
+        assertEquals(1, hits.length);
+        assertEquals(Integer.toString(i), searcher.doc(hits[0].doc).get("id"));
+      }
+
+      TestUtil.checkIndex(dir);
+
+      // the files in the data file stay encrypted with the key of the source
+      try (CeffDirectory other = (CeffDirectory) this.getDirectoryOtherKey(createTempDir())) {
+        final String dataFile =
+            Arrays.stream(dir.listAll()).filter(CeffCompoundFormat::isDataFile).findFirst().get();
+        expectThrows(
+            IllegalArgumentException.class,
+            () -> other.copyFrom(dir, dataFile, dataFile, IOContext.DEFAULT));
+      }
+
+      // a data file written without a CeffDirectory is not copied either
+      try (Directory plain = new NIOFSDirectory(createTempDir("testCompoundFormatPlain"))) {
+        try (IndexWriter writer =
+            new IndexWriter(
+                plain,
+                new IndexWriterConfig(new MockAnalyzer(random()))
+                    .setCodec(new CeffCodec())
+                    .setUseCompoundFile(true)
+                    .setMergePolicy(mergePolicy))) {
+          final Document doc = new Document();
+          doc.add(new StringField("id", "0", Field.Store.YES));
+          writer.addDocument(doc);
+        }
+
+        final String dataFile =
+            Arrays.stream(plain.listAll()).filter(CeffCompoundFormat::isDataFile).findFirst().get();
+        expectThrows(
+            IllegalArgumentException.class,
+            () -> dir.copyFrom(plain, dataFile, "_copy.ccfs", IOContext.DEFAULT));
+      }
+    }
+  }
+
+  public void testCompoundFormatWrapped() throws Exception {
+    for (int wrapper = 0; wrapper < 3; wrapper++) {
+      final Path path = createTempDir("testCompoundFormatWrapped");
+      final CeffDirectory ceff = (CeffDirectory) this.getDirectory(path);
+      // the files are read through the wrapper: from its cache, with its own encoding or (nothing
+      // is cached) from the CeffDirectory
+      final Directory dir =
+          wrapper == 0
+              ? new NRTCachingDirectory(ceff, 5.0, 60.0)
+              : wrapper == 1 ? new XorDirectory(ceff) : new NRTCachingDirectory(ceff, 0.0, 0.0);
+      assertFalse(ceff.opensPhysicalFiles(dir));
+      assertTrue(ceff.opensPhysicalFiles(new TrackingDirectoryWrapper(ceff)));
+      assertFalse(ceff.opensPhysicalFiles(new TrackingDirectoryWrapper(dir)));
+
+      final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+      mergePolicy.setNoCFSRatio(1.0);
+      int docs = 0;
+
+      try (IndexWriter writer =
+          new IndexWriter(
+              dir,
+              new IndexWriterConfig(new MockAnalyzer(random()))
+                  .setCodec(new CeffCodec())
+                  .setUseCompoundFile(true)
+                  .setMergePolicy(mergePolicy))) {
+        for (int refresh = 0; refresh < 3; refresh++) {
+          for (int i = TestUtil.nextInt(random(), 1, 100); i > 0; i--) {
+            final Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(docs++), Field.Store.YES));
+            doc.add(new TextField("content", English.intToEnglish(docs), Field.Store.NO));
+            writer.addDocument(doc);
+          }
+
+          try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            assertEquals(docs, reader.numDocs());
+            final int i = random().nextInt(docs);
+            final ScoreDoc[] hits =
+                new IndexSearcher(reader)
+                    .search(new TermQuery(new Term("id", Integer.toString(i))), 1)
+                    .scoreDocs;
+            assertEquals(1, hits.length);
+          }
+        }
+        writer.commit();
+      }
+
+      assertTrue(Arrays.stream(dir.listAll()).anyMatch(CeffCompoundFormat::isDataFile));
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(docs, reader.numDocs());
+      }
+      TestUtil.checkIndex(dir);
+      dir.close();
+
+      // the NRTCachingDirectory copied its cached data files with the key check
+      try (Stream<Path> files = Files.list(path)) {
+        assertTrue(files.anyMatch(f -> CeffCompoundFormat.isDataFile(f.getFileName().toString())));
+      }
+    }
+  }
+
+  public void testCopyCipherText() throws Exception {
+    final Path sourcePath = createTempDir("testCopyCipherTextSource");
+    final Path targetPath = createTempDir("testCopyCipherTextTarget");
+
+    try (CeffDirectory source = (CeffDirectory) this.getDirectory(sourcePath);
+        CeffDirectory target = (CeffDirectory) this.getDirectory(targetPath);
+        CeffDirectory otherKey = (CeffDirectory) this.getDirectoryOtherKey(targetPath)) {
+      target.setFormatVersion(source.getFormatVersion());
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 5 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = source.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      // same key, mode and format version: the cipher text is copied as it is, without opening a
+      // decrypting input of the file
+      final CeffMetrics metrics = new CeffMetrics();
+      source.setMetricsListener(metrics);
+      target.copyFrom(source, "test", "copy", IOContext.DEFAULT);
+      assertTrue(metrics.getStats().toString(), metrics.getStats().isEmpty());
+      source.setMetricsListener(null);
+      assertArrayEquals(
+          Files.readAllBytes(sourcePath.resolve("test")),
+          Files.readAllBytes(targetPath.resolve("copy")));
+      expectThrows(
+          FileAlreadyExistsException.class,
+          () -> target.copyFrom(source, "test", "copy", IOContext.DEFAULT));
+
+      // another key: the file is decrypted and encrypted again
+      otherKey.setFormatVersion(source.getFormatVersion());
+      otherKey.copyFrom(source, "test", "reencrypted", IOContext.DEFAULT);
+      assertFalse(
+          Arrays.equals(
+              Files.readAllBytes(sourcePath.resolve("test")),
+              Files.readAllBytes(targetPath.resolve("reencrypted"))));
+
+      for (final String name : new String[] {"copy", "reencrypted"}) {
+        try (IndexInput in =
+            (name.equals("copy") ? target : otherKey).openInput(name, IOContext.DEFAULT)) {
+          final byte[] read = new byte[bytes.length];
+          in.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+        }
+      }
+
+      // a tampered file is not copied
+      try (FileChannel channel =
+          FileChannel.open(
+              sourcePath.resolve("test"), StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+        final ByteBuffer footer = ByteBuffer.allocate(1);
+        channel.read(footer, channel.size() - 1);
+        footer.put(0, (byte) ~footer.get(0)).rewind();
+        channel.write(footer, channel.size() - 1);
+      }
+      if (this.mode != CeffMode.NULL_MODE) {
+        expectThrows(
+            IOException.class,
+            () -> target.copyFrom(source, "test", "tampered", IOContext.DEFAULT));
+        assertFalse(Files.exists(targetPath.resolve("tampered")));
+      }
+    }
+  }
+
+  public void testCopyPendingDeletion() throws Exception {
+    try (CeffDirectory source =
+            (CeffDirectory) this.getDirectory(createTempDir("testCopyPendingDeletionSource"));
+        CeffDirectory target =
+            (CeffDirectory)
+                this.getDirectory(addVirusChecker(createTempDir("testCopyPendingDeletion")))) {
+      target.setFormatVersion(
+          random().nextBoolean() ? source.getFormatVersion() : CeffUtils.FORMAT_VERSION_1);
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 3 * this.chunkLength)];
+      random().nextBytes(bytes);
+      try (IndexOutput out = source.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      // keep trying until the virus checker refuses to delete the file
+      String dest;
+      int counter = 0;
+      do {
+        dest = "copy" + counter++;
+        target.createOutput(dest, IOContext.DEFAULT).close();
+        target.deleteFile(dest);
+      } while (!target.getPendingDeletions().contains(dest));
+      assumeTrue("virus checker is disabled", TestUtil.disableVirusChecker(target));
+
+      // the copy brings the file back to life, the old pending deletion does not delete it
+      target.copyFrom(source, "test", dest, IOContext.DEFAULT);
+      assertFalse(target.getPendingDeletions().contains(dest));
+      assertTrue(Arrays.asList(target.listAll()).contains(dest));
+
+      try (IndexInput in = target.openInput(dest, IOContext.DEFAULT)) {
+        final byte[] read = new byte[bytes.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+      }
+    }
+  }
+
+  public void testCipherCache() throws Exception {
+    final CeffCipherCache cache = new CeffCipherCache("AES/GCM/NoPadding", "AES");
+    final byte[] key = new byte[32];
+    final byte[] otherKey = new byte[32];
+    random().nextBytes(key);
+    random().nextBytes(otherKey);
+
+    // the cipher and the key spec are reused, encryption and decryption have their own
+    final CeffCipherCache.Entry entry = cache.get(Cipher.ENCRYPT_MODE, key);
+    assertSame(entry, cache.get(Cipher.ENCRYPT_MODE, key.clone()));
+    assertSame(entry.keySpec(), cache.get(Cipher.ENCRYPT_MODE, key).keySpec());
+    assertNotSame(entry.cipher, cache.get(Cipher.DECRYPT_MODE, key).cipher);
+
+    // another key gets its own cipher, keys used in turn (e.g. the subkeys of two files of format
+    // version 3) keep their ciphers
+    final CeffCipherCache.Entry other = cache.get(Cipher.ENCRYPT_MODE, otherKey);
+    assertNotSame(entry.cipher, other.cipher);
+    assertArrayEquals(otherKey, other.keySpec().getEncoded());
+    for (int i = 0; i < 10; i++) {
+      assertSame(entry, cache.get(Cipher.ENCRYPT_MODE, key));
+      assertSame(other, cache.get(Cipher.ENCRYPT_MODE, otherKey));
+    }
+    assertArrayEquals(key, cache.get(Cipher.ENCRYPT_MODE, key).keySpec().getEncoded());
+
+    // the least recently used key gives up its cipher
+    for (int i = 0; i < CeffCipherCache.MAX_KEYS - 1; i++) {
+      final byte[] evictingKey = new byte[32];
+      random().nextBytes(evictingKey);
+      cache.get(Cipher.ENCRYPT_MODE, evictingKey);
+    }
+    assertSame(entry, cache.get(Cipher.ENCRYPT_MODE, key));
+    assertFalse(Arrays.equals(otherKey, other.keySpec().getEncoded()));
+    assertArrayEquals(otherKey, cache.get(Cipher.ENCRYPT_MODE, otherKey).keySpec().getEncoded());
+
+    final byte[] nonce = new byte[12];
+    final byte[] otherNonce = new byte[12];
+    random().nextBytes(nonce);
+    otherNonce[0] = (byte) ~nonce[0];
+    final CeffCipherCache.Entry decrypt = cache.get(Cipher.DECRYPT_MODE, key);
+    assertFalse(decrypt.reusesNonce(nonce));
+    assertTrue(decrypt.reusesNonce(nonce));
+    assertFalse(decrypt.reusesNonce(otherNonce));
+
+    // an invalidated cipher is replaced
+    final CeffCipherCache.Entry otherDecrypt = cache.get(Cipher.DECRYPT_MODE, otherKey);
+    cache.invalidate(Cipher.DECRYPT_MODE, key);
+    final CeffCipherCache.Entry replaced = cache.get(Cipher.DECRYPT_MODE, key);
+    assertNotSame(decrypt.cipher, replaced.cipher);
+    assertFalse(replaced.reusesNonce(otherNonce));
+    assertSame(otherDecrypt, cache.get(Cipher.DECRYPT_MODE, otherKey));
+
+    if (this.mode == CeffMode.NULL_MODE || !this.mode.isSupported()) {
+      return;
+    }
+
+    final ByteBuffer plainText = ByteBuffer.allocate(TestUtil.nextInt(random(), 1, 64 * 1024));
+    random().nextBytes(plainText.array());
+    final byte[] modeNonce = this.mode.randomNonce();
+    final byte[] cipherText =
+        this.mode.encrypt(
+            plainText.duplicate(), ByteBuffer.allocate(CeffUtils.AAD_LENGTH), key, modeNonce);
+
+    // the same chunk decrypted twice in a row re-inits the cipher with the same key and nonce
+    for (int i = 0; i < 2; i++) {
+      assertArrayEquals(
+          plainText.array(),
+          this.mode.decrypt(
+              ByteBuffer.wrap(cipherText),
+              ByteBuffer.allocate(CeffUtils.AAD_LENGTH),
+              key,
+              modeNonce));
+    }
+
+    // a failed decryption leaves no cipher in an undefined state behind
+    final byte[] tampered = cipherText.clone();
+    tampered[tampered.length - 1] ^= 1;
+    expectThrows(
+        CeffCryptoException.class,
+        () ->
+            this.mode.decrypt(
+                ByteBuffer.wrap(tampered),
+                ByteBuffer.allocate(CeffUtils.AAD_LENGTH),
+                key,
+                modeNonce));
+    assertArrayEquals(
+        plainText.array(),
+        this.mode.decrypt(
+            ByteBuffer.wrap(cipherText),
+            ByteBuffer.allocate(CeffUtils.AAD_LENGTH),
+            key,
+            modeNonce));
+  }
+
+  public void testModeCalibration() throws Exception {
+    final Path path = createTempDir("testModeCalibration");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final CeffModeCalibration calibration = CeffModeCalibration.run(this.chunkLength, 50);
+
+      assertEquals(this.chunkLength, calibration.getChunkLength());
+      assertEquals(
+          CeffMode.CHACHA20_POLY1305_MODE.isSupported() ? 2 : 1, calibration.getResults().size());
+      assertSame(calibration.getFastestMode(), calibration.getResults().get(0).getMode());
+
+      for (final CeffModeCalibration.Result result : calibration.getResults()) {
+        assertTrue(result.getEncryptNanos() > 0);
+        assertTrue(result.getDecryptMbPerSecond() > 0);
+        assertTrue(
+            calibration.toString(),
+            calibration.toString().contains(result.getMode().getClass().getSimpleName()));
+        assertTrue(
+            result.getEncryptNanos() + result.getDecryptNanos()
+                >= calibration.getResults().get(0).getEncryptNanos()
+                    + calibration.getResults().get(0).getDecryptNanos());
+      }
+
+      // files are written with the fastest mode
+      dir.setEncryptionPolicy((fileName, context) -> calibration.getFastestMode());
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 2 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.READ)) {
+        final byte[] read = new byte[bytes.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+      }
+
+      assertEquals(
+          calibration.getFastestMode().getModeByte(), Files.readAllBytes(path.resolve("test"))[4]);
+
+      expectThrows(IllegalArgumentException.class, () -> CeffModeCalibration.run(1, 50));
+      expectThrows(
+          IllegalArgumentException.class, () -> CeffModeCalibration.run(this.chunkLength, 0));
+    }
+  }
+
+  public void testFormatVersion() throws Exception {
+    final Path path = createTempDir("testFormatVersion");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      // the cache would still serve the verified chunks of the modified file
+      dir.setChunkCache(null);
+
+      final byte[] bytes = new byte[3 * this.chunkLength];
+      random().nextBytes(bytes);
+
+      for (final int version :
+          new int[] {
+            CeffUtils.FORMAT_VERSION_1, CeffUtils.FORMAT_VERSION_2, CeffUtils.FORMAT_VERSION_3
+          }) {
+        dir.setFormatVersion(version);
+
+        for (int i = 0; i < 2; i++) {
+          try (IndexOutput out = dir.createOutput("test" + version + i, IOContext.DEFAULT)) {
+            out.writeBytes(bytes, bytes.length);
+          }
+        }
+
+        try (IndexInput in = dir.openInput("test" + version + 0, IOContext.DEFAULT)) {
+          final byte[] read = new byte[bytes.length];
+          in.readBytes(read, 0, read.length);
+          assertArrayEquals(bytes, read);
+        }
+
+        // the files have the same length, replace the second chunk of the first file with the
+        // one of the second file
+        final int chunkOffset =
+            CeffUtils.HEADER_LENGTH + this.chunkLength + CeffUtils.cryptoLength(this.mode);
+        final byte[] file0 = Files.readAllBytes(path.resolve("test" + version + 0));
+        final byte[] file1 = Files.readAllBytes(path.resolve("test" + version + 1));
+
+        if (version == CeffUtils.FORMAT_VERSION_3) {
+          // the nonces are the chunk numbers, the files are distinguished by their subkeys
+          for (int k = 0; k < 3; k++) {
+            final int offset =
+                CeffUtils.HEADER_LENGTH
+                    + k * (this.chunkLength + CeffUtils.cryptoLength(this.mode));
+            assertArrayEquals(
+                CeffUtils.counterNonce(this.mode, k),
+                Arrays.copyOfRange(file1, offset, offset + this.mode.getNonceLength()));
+          }
+        }
+        System.arraycopy(
+            file1,
+            chunkOffset,
+            file0,
+            chunkOffset,
+            this.chunkLength + CeffUtils.cryptoLength(this.mode));
+        Files.write(path.resolve("test" + version + 0), file0);
+
+        if (this.mode == CeffMode.NULL_MODE) {
+          continue;
+        }
+
+        // version 1 detects it when the file is opened, version 2 and 3 when the chunk is read
+        expectThrows(
+            IOException.class,
+            () -> {
+              try (IndexInput in = dir.openInput("test" + version + 0, IOContext.DEFAULT)) {
+                in.seek(this.chunkLength);
+                in.readByte();
+              }
+            });
+      }
+
+      expectThrows(IllegalArgumentException.class, () -> dir.setFormatVersion(4));
+    }
+  }
+
+  public void testParallelEncryption() throws Exception {
+    final Path path = createTempDir("testParallelEncryption");
+
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(path)) {
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 20 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      final long[] checksums = new long[2];
+
+      for (int i = 0; i < 2; i++) {
+        dir.setEncryptionExecutor(i == 0 ? null : executor, 2);
+
+        try (IndexOutput out = dir.createOutput("test" + i, IOContext.DEFAULT)) {
+          int written = 0;
+          while (written < bytes.length) {
+            final int length =
+                Math.min(TestUtil.nextInt(random(), 1, 70000), bytes.length - written);
+            out.writeBytes(bytes, written, length);
+            written += length;
+          }
+          checksums[i] = out.getChecksum();
+        }
+      }
+
+      assertEquals(checksums[0], checksums[1]);
+      assertEquals(dir.fileLength("test0"), dir.fileLength("test1"));
+
+      // the signature is verified on open
+      try (IndexInput in = dir.openInput("test1", IOContext.DEFAULT)) {
+        final byte[] read = new byte[bytes.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+      }
+    }
+  }
+
+  public void testReadahead() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testReadahead"))) {
+      dir.setReadahead(executor, TestUtil.nextInt(random(), 1, 4));
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 20 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      for (final IOContext context :
+          new IOContext[] {IOContext.READONCE, IOContext.DEFAULT, IOContext.READ}) {
+        try (IndexInput in = dir.openInput("test", context)) {
+          IndexInput clone = null;
+          int pos = 0;
+
+          while (pos < bytes.length) {
+            if (random().nextInt(10) == 0) {
+              assertEquals(bytes[pos], in.readByte());
+              pos++;
+            } else {
+              final int length = Math.min(TestUtil.nextInt(random(), 1, 30000), bytes.length - pos);
+              final byte[] read = new byte[length];
+              in.readBytes(read, 0, length);
+              assertArrayEquals(ArrayUtil.copyOfSubArray(bytes, pos, pos + length), read);
+              pos += length;
+            }
+
+            if (clone == null && random().nextInt(5) == 0) {
+              clone = in.clone();
+            }
+
+            if (random().nextInt(20) == 0) {
+              // random access in between
+              pos = random().nextInt(bytes.length);
+              in.seek(pos);
+            }
+          }
+
+          if (clone != null) {
+            // the clone must not see buffers which are reused by the readahead
+            final long clonePos = clone.getFilePointer();
+            final byte[] read = new byte[(int) (bytes.length - clonePos)];
+            clone.readBytes(read, 0, read.length);
+            assertArrayEquals(ArrayUtil.copyOfSubArray(bytes, (int) clonePos, bytes.length), read);
+          }
+        }
+      }
+
+      // a read once input reads ahead after the first chunk in order, but not after jumps
+      final AtomicInteger batches = new AtomicInteger();
+      dir.setChunkCache(null);
+      dir.setReadahead(
+          task -> {
+            batches.incrementAndGet();
+            task.run();
+          },
+          1);
+
+      final byte[] chunks = new byte[4 * this.chunkLength];
+      random().nextBytes(chunks);
+      try (IndexOutput out = dir.createOutput("chunks", IOContext.DEFAULT)) {
+        out.writeBytes(chunks, chunks.length);
+      }
+
+      try (IndexInput in = dir.openInput("chunks", IOContext.READONCE)) {
+        for (int chunk = 3; chunk >= 0; chunk--) {
+          in.seek(chunk * this.chunkLength);
+          assertEquals(chunks[chunk * this.chunkLength], in.readByte());
+        }
+        assertEquals(0, batches.get());
+
+        in.seek(0);
+        final byte[] read = new byte[chunks.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(chunks, read);
+        assertTrue(batches.get() > 0);
+      }
+    }
+  }
+
+  public void testPositionalReads() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testPositionalReads"))) {
+      dir.setPositionalReads(true);
+
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 10 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+        // clones and slices read concurrently from the same channel without a shared position
+        final Thread[] threads = new Thread[4];
+        final Throwable[] failures = new Throwable[threads.length];
+
+        for (int t = 0; t < threads.length; t++) {
+          final int thread = t;
+          final IndexInput clone = t % 2 == 0 ? in.clone() : in.slice("slice", 0, bytes.length);
+          final long seed = random().nextLong();
+          threads[t] =
+              new Thread(
+                  () -> {
+                    try {
+                      final Random random = new Random(seed);
+                      for (int i = 0; i < 200; i++) {
+                        final int pos = random.nextInt(bytes.length);
+                        final int length = Math.min(random.nextInt(100) + 1, bytes.length - pos);
+                        final byte[] read = new byte[length];
+                        clone.seek(pos);
+                        clone.readBytes(read, 0, length);
+                        assertArrayEquals(ArrayUtil.copyOfSubArray(bytes, pos, pos + length), read);
+                      }
+                    } catch (final Throwable e) {
+                      failures[thread] = e;
+                    }
+                  });
+          threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+          threads[t].join();
+          if (failures[t] != null) {
+            throw new AssertionError(failures[t]);
+          }
+        }
+      }
+
+      // a plain file is read with positional reads too
+      dir.setEncryptionPolicy(
+          CeffEncryptionPolicy.byExtension(
+              this.mode, Collections.emptyMap(), Collections.singleton("plain")));
+      try (IndexOutput out = dir.createOutput("test.plain", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      try (IndexInput in = dir.openInput("test.plain", IOContext.DEFAULT)) {
+        final byte[] read = new byte[bytes.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+        expectThrows(EOFException.class, in::readByte);
+      }
+    }
+  }
+
+  public void testCloneSharesCurrentChunk() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testCloneSharesCurrentChunk"))) {
+      // without a cache the chunks are decrypted into the own buffers
+      dir.setChunkCache(null);
+
+      final byte[] bytes = new byte[3 * this.chunkLength];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+        final int pos = random().nextInt(this.chunkLength);
+        in.seek(pos);
+        final IndexInput clone = in.clone();
+        final IndexInput slice = in.slice("slice", pos, bytes.length - pos);
+
+        // the parent decrypts other chunks, the clone and the slice must not see them
+        in.seek(bytes.length - 1);
+        assertEquals(bytes[bytes.length - 1], in.readByte());
+        in.seek(this.chunkLength);
+        assertEquals(bytes[this.chunkLength], in.readByte());
+
+        final byte[] read = new byte[bytes.length - pos];
+        clone.readBytes(read, 0, read.length);
+        assertArrayEquals(ArrayUtil.copyOfSubArray(bytes, pos, bytes.length), read);
+
+        for (int i = 0; i < read.length; i++) {
+          assertEquals(bytes[pos + i], slice.readByte());
+        }
+
+        expectThrows(EOFException.class, slice::readByte);
+        in.seek(0);
+        assertEquals(bytes[0], in.readByte());
+
+        // clones are created by several threads at once without modifying the parent
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(4, new NamedThreadFactory("clone"));
+        try {
+          final List<Future<?>> futures = new ArrayList<>();
+          for (int i = 0; i < 16; i++) {
+            futures.add(
+                executor.submit(
+                    () -> {
+                      final IndexInput concurrentClone = in.clone();
+                      final byte[] cloneRead = new byte[bytes.length - 1];
+                      concurrentClone.readBytes(cloneRead, 0, cloneRead.length);
+                      assertArrayEquals(
+                          ArrayUtil.copyOfSubArray(bytes, 1, bytes.length), cloneRead);
+                      return null;
+                    }));
+          }
+          for (final Future<?> future : futures) {
+            future.get();
+          }
+        } finally {
+          executor.shutdown();
+          assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        // the parent decrypts into a new buffer and does not overwrite the shared chunk
+        final IndexInput shared = in.clone();
+        in.seek(bytes.length - 1);
+        assertEquals(bytes[bytes.length - 1], in.readByte());
+        assertEquals(bytes[1], shared.readByte());
+      }
+    }
+  }
+
+  public void testPrimitiveReads() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testPrimitiveReads"))) {
+      final long seed = random().nextLong();
+      final Random random = new Random(seed);
+      final int count = 3 * this.chunkLength / 4;
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        for (int i = 0; i < count; i++) {
+          switch (random.nextInt(6)) {
+            case 0:
+              out.writeShort((short) random.nextInt());
+              break;
+            case 1:
+              out.writeInt(random.nextInt());
+              break;
+            case 2:
+              out.writeLong(random.nextLong());
+              break;
+            case 3:
+              out.writeVInt(random.nextInt() >>> random.nextInt(32));
+              break;
+            case 4:
+              out.writeVLong(random.nextLong() >>> (1 + random.nextInt(63)));
+              break;
+            default:
+              out.writeLong(Long.reverseBytes(random.nextLong()));
+          }
+        }
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+        random.setSeed(seed);
+
+        // values span chunk boundaries
+        for (int i = 0; i < count; i++) {
+          switch (random.nextInt(6)) {
+            case 0:
+              assertEquals((short) random.nextInt(), in.readShort());
+              break;
+            case 1:
+              assertEquals(random.nextInt(), in.readInt());
+              break;
+            case 2:
+              assertEquals(random.nextLong(), in.readLong());
+              break;
+            case 3:
+              assertEquals(random.nextInt() >>> random.nextInt(32), in.readVInt());
+              break;
+            case 4:
+              assertEquals(random.nextLong() >>> (1 + random.nextInt(63)), in.readVLong());
+              break;
+            default:
+              final long[] dst = new long[1];
+              in.readLELongs(dst, 0, 1);
+              assertEquals(random.nextLong(), dst[0]);
+          }
+        }
+
+        assertEquals(in.length(), in.getFilePointer());
+
+        // bulk little endian longs across chunk boundaries
+        final long[] expected = new long[(int) (in.length() / Long.BYTES) - 1];
+        final long[] actual = new long[expected.length];
+        in.seek(3);
+        for (int i = 0; i < expected.length; i++) {
+          expected[i] = Long.reverseBytes(in.readLong());
+        }
+        in.seek(3);
+        in.readLELongs(actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+
+        // a slice ends within the chunk, the primitive reads must not read past it
+        final IndexInput slice = in.slice("slice", 1, this.chunkLength / 2);
+        slice.seek(slice.length() - 3);
+        expectThrows(EOFException.class, slice::readInt);
+        slice.seek(slice.length() - 3);
+        expectThrows(EOFException.class, slice::readLong);
+      }
+    }
+  }
+
+  public void testPartialDecryption() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testPartialDecryption"))) {
+      // cached chunks are never decrypted partially
+      dir.setChunkCache(null);
+      dir.setReadahead(null, 0);
+      dir.setPartialDecryption(true);
+      final CeffMetrics metrics = new CeffMetrics();
+      dir.setMetricsListener(metrics);
+
+      final byte[] bytes = new byte[3 * this.chunkLength];
+      random().nextBytes(bytes);
+      final ByteBuffer expected = ByteBuffer.wrap(bytes);
+
+      try (IndexOutput out = dir.createOutput("test.dvd", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("test.dvd", IOContext.DEFAULT)) {
+        final RandomAccessInput clone = in.clone().randomAccessSlice(0, bytes.length);
+        // the first chunk was verified when the file was opened, the last chunk not yet
+        assertEquals(expected.getLong(bytes.length - 8), clone.readLong(bytes.length - 8));
+        final CeffMetrics.Stats stats = metrics.getStats("dvd", "DEFAULT");
+        assertEquals(2, stats.getChunksDecrypted());
+        assertEquals(0, stats.getChunksPartiallyDecrypted());
+
+        // the chunks verified by the input or the clone are decrypted partially by both
+        for (int i = 0; i < 100; i++) {
+          final int pos =
+              random().nextBoolean()
+                  ? random().nextInt(this.chunkLength - 8)
+                  : TestUtil.nextInt(random(), 2 * this.chunkLength, bytes.length - 8);
+          final RandomAccessInput input =
+              random().nextBoolean() ? clone : in.randomAccessSlice(0, bytes.length);
+          switch (random().nextInt(4)) {
+            case 0:
+              assertEquals(expected.get(pos), input.readByte(pos));
+              break;
+            case 1:
+              assertEquals(expected.getShort(pos), input.readShort(pos));
+              break;
+            case 2:
+              assertEquals(expected.getInt(pos), input.readInt(pos));
+              break;
+            default:
+              assertEquals(expected.getLong(pos), input.readLong(pos));
+          }
+        }
+
+        // all built-in modes support partial decryption
+        assertEquals(stats.toString(), 0, stats.getChunksRedecrypted());
+        assertTrue(stats.toString(), stats.getChunksPartiallyDecrypted() > 0);
+        assertTrue(
+            stats.toString(),
+            stats.getBytesPartiallyDecrypted()
+                <= stats.getChunksPartiallyDecrypted()
+                    * (Long.BYTES + 2L * this.mode.getKeyStreamBlockLength()));
+
+        // the stream position is not changed by partial decryption
+        in.seek(this.chunkLength + 1);
+        assertEquals(bytes[this.chunkLength + 1], in.readByte());
+        assertEquals(expected.getLong(8), clone.readLong(8));
+        assertEquals(bytes[this.chunkLength + 2], in.readByte());
+      }
+    }
+  }
+
+  public void testPrimitiveWrites() throws Exception {
+    try (CeffDirectory dir =
+        (CeffDirectory) this.getDirectory(createTempDir("testPrimitiveWrites"))) {
+      final ByteBuffersDataOutput expected = new ByteBuffersDataOutput();
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        while (expected.size() < 3 * this.chunkLength) {
+          switch (random().nextInt(8)) {
+            case 0:
+              final byte b = (byte) random().nextInt();
+              out.writeByte(b);
+              expected.writeByte(b);
+              break;
+            case 1:
+              final short s = (short) random().nextInt();
+              out.writeShort(s);
+              expected.writeShort(s);
+              break;
+            case 2:
+              final int i = random().nextInt();
+              out.writeInt(i);
+              expected.writeInt(i);
+              break;
+            case 3:
+              final long l = random().nextLong();
+              out.writeLong(l);
+              expected.writeLong(l);
+              break;
+            case 4:
+              final int vInt = random().nextInt() >>> random().nextInt(32);
+              out.writeVInt(vInt);
+              expected.writeVInt(vInt);
+              break;
+            case 5:
+              final long vLong = random().nextLong() >>> (1 + random().nextInt(63));
+              out.writeVLong(vLong);
+              expected.writeVLong(vLong);
+              break;
+            case 6:
+              final byte[] bytes = new byte[random().nextInt(100)];
+              random().nextBytes(bytes);
+              out.writeBytes(bytes, bytes.length);
+              expected.writeBytes(bytes);
+              break;
+            default:
+              final String string = TestUtil.randomUnicodeString(random());
+              out.writeString(string);
+              expected.writeString(string);
+          }
+
+          assertEquals(expected.size(), out.getFilePointer());
+
+          if (random().nextInt(1000) == 0) {
+            assertEquals(checksum(expected), out.getChecksum());
+          }
+        }
+
+        assertEquals(checksum(expected), out.getChecksum());
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+        final byte[] read = new byte[(int) in.length()];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(expected.toArrayCopy(), read);
+      }
+
+      // the buffers of a closed output may be used by another output
+      final IndexOutput closed = dir.createOutput("closed", IOContext.DEFAULT);
+      closed.close();
+      expectThrows(AlreadyClosedException.class, () -> closed.writeByte((byte) 1));
+      expectThrows(AlreadyClosedException.class, () -> closed.writeShort((short) 1));
+      expectThrows(AlreadyClosedException.class, () -> closed.writeInt(1));
+      expectThrows(AlreadyClosedException.class, () -> closed.writeLong(1L));
+      expectThrows(AlreadyClosedException.class, () -> closed.writeBytes(new byte[1], 1));
+    }
+  }
+
+  private static long checksum(ByteBuffersDataOutput bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes.toArrayCopy());
+    return crc.getValue();
+  }
+
+  public void testRandomAccess() throws Exception {
+    try (CeffDirectory dir = (CeffDirectory) this.getDirectory(createTempDir("testRandomAccess"))) {
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 8, 5 * this.chunkLength)];
+      random().nextBytes(bytes);
+
+      try (IndexOutput out = dir.createOutput("test", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+
+      try (IndexInput in = dir.openInput("test", IOContext.DEFAULT)) {
+        final int offset = random().nextInt(bytes.length - 8);
+        final RandomAccessInput slice =
+            in.randomAccessSlice(offset, TestUtil.nextInt(random(), 8, bytes.length - offset));
+        assertTrue(slice instanceof CeffIndexInput);
+
+        final IndexInput stream = (IndexInput) slice;
+        final ByteBuffer expected = ByteBuffer.wrap(bytes, offset, bytes.length - offset).slice();
+
+        for (int i = 0; i < 1000; i++) {
+          final long length = stream.length();
+          // also positions which span two chunks
+          final long pos =
+              random().nextBoolean()
+                  ? random().nextInt((int) length - 7)
+                  : Math.max(
+                      0,
+                      Math.min(
+                          length - 8,
+                          this.chunkLength
+                              - (offset % this.chunkLength)
+                              - TestUtil.nextInt(random(), 1, 7)));
+
+          switch (random().nextInt(5)) {
+            case 0:
+              assertEquals(expected.get((int) pos), slice.readByte(pos));
+              break;
+            case 1:
+              assertEquals(expected.getShort((int) pos), slice.readShort(pos));
+              break;
+            case 2:
+              assertEquals(expected.getInt((int) pos), slice.readInt(pos));
+              break;
+            case 3:
+              assertEquals(expected.getLong((int) pos), slice.readLong(pos));
+              break;
+            default:
+              // positional reads do not change the file pointer of the stream
+              final long fp = stream.getFilePointer();
+              if (fp < length) {
+                assertEquals(expected.get((int) fp), stream.readByte());
+                assertEquals(fp + 1, stream.getFilePointer());
+              } else {
+                stream.seek(random().nextInt((int) length));
+              }
+          }
+        }
+
+        expectThrows(EOFException.class, () -> slice.readInt(stream.length() - 3));
+        expectThrows(EOFException.class, () -> slice.readByte(-1));
+      }
+    }
+  }
+
+  public void testByteBufferEncryptDecrypt() throws Exception {
+    final byte[] plainText = new byte[TestUtil.nextInt(random(), 0, 100_000)];
+    random().nextBytes(plainText);
+    final ByteBuffer aad = ByteBuffer.allocate(CeffUtils.AAD_LENGTH);
+    aad.putLong(random().nextLong()).flip();
+
+    for (final CeffMode mode : new CeffMode[] {this.mode, new ArrayOnlyMode(this.mode)}) {
+      final byte[] nonce = mode.randomNonce();
+      final ByteBuffer cipherText =
+          random().nextBoolean()
+              ? ByteBuffer.allocateDirect(plainText.length + mode.getTagLength())
+              : ByteBuffer.allocate(plainText.length + mode.getTagLength());
+      assertEquals(
+          cipherText.capacity(),
+          mode.encrypt(ByteBuffer.wrap(plainText), aad.duplicate(), this.key, nonce, cipherText));
+      assertFalse(cipherText.hasRemaining());
+      cipherText.flip();
+
+      final ByteBuffer decrypted =
+          random().nextBoolean()
+              ? ByteBuffer.allocateDirect(plainText.length)
+              : ByteBuffer.allocate(plainText.length);
+      assertEquals(
+          plainText.length, mode.decrypt(cipherText, aad.duplicate(), this.key, nonce, decrypted));
+      decrypted.flip();
+      assertArrayEquals(plainText, CeffUtils.toArray(decrypted));
+    }
+  }
+
+  /** Custom mode which only implements the array based methods */
+  private static class ArrayOnlyMode extends CeffMode {
+    private final CeffMode mode;
+
+    ArrayOnlyMode(CeffMode mode) {
+      super((byte) 99);
+      this.mode = mode;
+    }
+
+    @Override
+    public int getTagLength() {
+      return this.mode.getTagLength();
+    }
+
+    @Override
+    public int getNonceLength() {
+      return this.mode.getNonceLength();
+    }
+
+    @Override
+    public byte[] randomNonce() {
+      return this.mode.randomNonce();
+    }
+
+    @Override
+    public boolean isSupported() {
+      return this.mode.isSupported();
+    }
+
+    @Override
+    public byte[] encrypt(ByteBuffer plainText, ByteBuffer aad, byte[] key, byte[] nonce)
+        throws CeffCryptoException {
+      return this.mode.encrypt(plainText, aad, key, nonce);
+    }
+
+    @Override
+    public byte[] decrypt(ByteBuffer cipherText, ByteBuffer aad, byte[] key, byte[] nonce)
+        throws CeffCryptoException {
+      return this.mode.decrypt(cipherText, aad, key, nonce);
+    }
+  }
+
   private void prepareFile(Path file) throws IOException {
     Files.copy(
         file,
@@ -424,7 +1966,154 @@ public class TestCeffDirectory extends BaseDirectoryTestCase {
         StandardCopyOption.REPLACE_EXISTING);
   }
 
+  public void testCompoundEntryOutput() throws Exception {
+    try (Directory dir = new ByteBuffersDirectory();
+        IndexOutput data = dir.createOutput("_0.ccfs", IOContext.DEFAULT)) {
+      data.writeInt(42);
+      final byte[] bytes = new byte[TestUtil.nextInt(random(), 1, 100_000)];
+      random().nextBytes(bytes);
+      final CRC32 crc = new CRC32();
+      crc.update(bytes);
+
+      try (IndexOutput out = new CeffCompoundFormat.EntryOutput(data, "_0.doc")) {
+        out.writeByte(bytes[0]);
+        out.writeBytes(bytes, 1, bytes.length - 1);
+        assertEquals(bytes.length, out.getFilePointer());
+        assertEquals(crc.getValue(), out.getChecksum());
+      }
+
+      // the data file stays open
+      assertEquals(Integer.BYTES + bytes.length, data.getFilePointer());
+    }
+  }
+
+  /** Encodes all files with a mask, the cipher text of the CeffDirectory is not the file */
+  private static final class XorDirectory extends FilterDirectory {
+    private static final byte MASK = 0x5A;
+
+    private XorDirectory(Directory in) {
+      super(in);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) throws IOException {
+      return new XorOutput(this.in.createOutput(name, context));
+    }
+
+    @Override
+    public IndexOutput createTempOutput(String prefix, String suffix, IOContext context)
+        throws IOException {
+      return new XorOutput(this.in.createTempOutput(prefix, suffix, context));
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+      return new XorInput(this.in.openInput(name, context));
+    }
+
+    private static final class XorOutput extends IndexOutput {
+      private final IndexOutput out;
+      private final CRC32 crc = new CRC32();
+
+      private XorOutput(IndexOutput out) {
+        super("Xor " + out, out.getName());
+        this.out = out;
+      }
+
+      @Override
+      public void writeByte(byte b) throws IOException {
+        this.crc.update(b);
+        this.out.writeByte((byte) (b ^ MASK));
+      }
+
+      @Override
+      public void writeBytes(byte[] b, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+          this.writeByte(b[offset + i]);
+        }
+      }
+
+      @Override
+      public long getFilePointer() {
+        return this.out.getFilePointer();
+      }
+
+      @Override
+      public long getChecksum() {
+        return this.crc.getValue();
+      }
+
+      @Override
+      public void close() throws IOException {
+        this.out.close();
+      }
+    }
+
+    private static final class XorInput extends IndexInput {
+      private IndexInput in;
+
+      private XorInput(IndexInput in) {
+        super("Xor " + in);
+        this.in = in;
+      }
+
+      @Override
+      public byte readByte() throws IOException {
+        return (byte) (this.in.readByte() ^ MASK);
+      }
+
+      @Override
+      public void readBytes(byte[] b, int offset, int len) throws IOException {
+        this.in.readBytes(b, offset, len);
+        for (int i = offset; i < offset + len; i++) {
+          b[i] ^= MASK;
+        }
+      }
+
+      @Override
+      public long getFilePointer() {
+        return this.in.getFilePointer();
+      }
+
+      @Override
+      public void seek(long pos) throws IOException {
+        this.in.seek(pos);
+      }
+
+      @Override
+      public long length() {
+        return this.in.length();
+      }
+
+      @Override
+      public IndexInput slice(String sliceDescription, long offset, long length)
+          throws IOException {
+        return new XorInput(this.in.slice(sliceDescription, offset, length));
+      }
+
+      @Override
+      public XorInput clone() {
+        final XorInput clone = (XorInput) super.clone();
+        clone.in = this.in.clone();
+        return clone;
+      }
+
+      @Override
+      public void close() throws IOException {
+        this.in.close();
+      }
+    }
+  }
+
   private static byte value(int idx) {
     return (byte) ((idx % 256) * (1 + (idx / 256)));
   }
+
+  /** The JFR threads started by {@link #testJfrEvents()} live until the JVM exits */
+  public static final class JfrThreadsFilter implements ThreadFilter {
+    @Override
+    public boolean reject(Thread t) {
+      return t.getName().startsWith("JFR ");
+    }
+  }
 }